@@ -55,9 +55,14 @@ public class ActivePredicateSet {
 
     private final SearchFactory factory;
 
+    // identifies the filters in factory; see Main.getSignature()
+    private final String signature;
+
+    private volatile List<String> filterNames;
+
     public ActivePredicateSet(Main main,
             List<HyperFindPredicate> selectedPredicates,
-            SearchFactory factory) {
+            SearchFactory factory, String signature) {
         this.main = main;
         this.predicates = new ArrayList<ActivePredicate>(
                 selectedPredicates.size());
@@ -66,8 +71,34 @@ public class ActivePredicateSet {
                     p.getInstanceName(), p.getFilterNames()));
         }
         this.factory = factory;
+        this.signature = signature;
+    }
+
+    /*
+     * For searches run without a UI; results cannot be popped up.
+     */
+    public ActivePredicateSet(List<HyperFindPredicate> selectedPredicates,
+            SearchFactory factory, String signature) {
+        this(null, selectedPredicates, factory, signature);
     }
 
+    private ActivePredicateSet(List<ActivePredicate> predicates, Main main,
+            String signature) {
+        this.main = main;
+        this.predicates = new ArrayList<ActivePredicate>(predicates);
+        this.factory = null;
+        this.signature = signature;
+    }
+
+    /*
+     * For results restored from a session snapshot, which have no factory.
+     */
+    static ActivePredicateSet restore(Main main,
+            List<ActivePredicate> predicates, String signature) {
+        return new ActivePredicateSet(predicates, main, signature);
+    }
+
+    // null if there is no UI
     Main getMain() {
         return main;
     }
@@ -76,15 +107,24 @@ public class ActivePredicateSet {
         return Collections.unmodifiableList(predicates);
     }
 
+    // computed once, since every result of the set asks for it
     public List<String> getFilterNames() {
-        List<String> names = new ArrayList<String>();
-        for (ActivePredicate p : predicates) {
-            names.addAll(p.getFilterNames());
+        if (filterNames == null) {
+            List<String> names = new ArrayList<String>();
+            for (ActivePredicate p : predicates) {
+                names.addAll(p.getFilterNames());
+            }
+            filterNames = Collections.unmodifiableList(names);
         }
-        return names;
+        return filterNames;
     }
 
+    // null for restored results
     public SearchFactory getSearchFactory() {
         return factory;
     }
+
+    public String getSignature() {
+        return signature;
+    }
 }
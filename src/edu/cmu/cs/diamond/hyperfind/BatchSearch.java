@@ -0,0 +1,447 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.imageio.ImageIO;
+
+import edu.cmu.cs.diamond.opendiamond.BundleFactory;
+import edu.cmu.cs.diamond.opendiamond.BundleType;
+import edu.cmu.cs.diamond.opendiamond.CookieMap;
+import edu.cmu.cs.diamond.opendiamond.Filter;
+import edu.cmu.cs.diamond.opendiamond.Result;
+import edu.cmu.cs.diamond.opendiamond.Search;
+import edu.cmu.cs.diamond.opendiamond.SearchFactory;
+import edu.cmu.cs.diamond.opendiamond.Util;
+
+/**
+ * Runs a saved predicate set against the default scope without a display,
+ * writing one record per result (object, scores and patches) as JSON
+ * lines or CSV.  Search monitors run as they do in the UI.
+ * <p>
+ * The predicate set is a properties file:
+ * <pre>
+ * codec = RGB Image
+ * codec.option.NAME = VALUE
+ * predicate.1 = Color Histogram
+ * predicate.1.name = red things
+ * predicate.1.option.NAME = VALUE
+ * predicate.1.examples = red1.png:red2.png
+ * </pre>
+ * Bundles are named by display name, predicates are numbered in search
+ * order, options not given take their defaults and examples are separated
+ * by the platform path separator.
+ */
+final class BatchSearch {
+
+    private enum Format {
+        JSONL, CSV
+    }
+
+    private final Format format;
+
+    private final Writer out;
+
+    private final List<String> filterNames;
+
+    private BatchSearch(Format format, Writer out, List<String> filterNames) {
+        this.format = format;
+        this.out = out;
+        this.filterNames = filterNames;
+    }
+
+    static void printUsage() {
+        System.out.println("usage: " + Main.class.getName()
+                + " --batch predicate-set [--format jsonl|csv]"
+                + " [--output file] [--limit n]"
+                + " bundle-directories filter-directories");
+    }
+
+    /*
+     * Returns the process exit status.
+     */
+    static int run(String[] args) {
+        String setFile = null;
+        Format format = Format.JSONL;
+        String output = null;
+        long limit = Long.MAX_VALUE;
+        List<String> dirs = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--batch")) {
+                    setFile = args[++i];
+                } else if (args[i].equals("--format")) {
+                    format = Format.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("--output")) {
+                    output = args[++i];
+                } else if (args[i].equals("--limit")) {
+                    limit = Long.parseLong(args[++i]);
+                } else {
+                    dirs.add(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            // missing argument, unknown format or bad number
+            dirs.clear();
+        }
+        if (setFile == null || dirs.size() != 2) {
+            printUsage();
+            return 1;
+        }
+
+        try {
+            BundleFactory bundleFactory = new BundleFactory(
+                    Main.splitDirs(dirs.get(0)), Main.splitDirs(dirs.get(1)));
+            return search(bundleFactory, new File(setFile), format, output,
+                    limit);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    private static int search(BundleFactory bundleFactory, File setFile,
+            Format format, String output, long limit) throws IOException,
+            InterruptedException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(setFile);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        Map<String, HyperFindPredicateFactory> factories =
+                new HashMap<String, HyperFindPredicateFactory>();
+        for (HyperFindPredicateFactory f : HyperFindPredicateFactory
+                .createHyperFindPredicateFactories(bundleFactory)) {
+            factories.put(f.getType() + ":" + f.getDisplayName(), f);
+        }
+
+        // codec, then predicates in numeric order
+        HyperFindPredicate codec = createPredicate(factories, props,
+                BundleType.CODEC, "codec", null);
+        TreeMap<Integer, String> prefixes = new TreeMap<Integer, String>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.matches("predicate\\.[0-9]+")) {
+                prefixes.put(Integer.valueOf(key.substring(10)), key);
+            }
+        }
+        List<HyperFindPredicate> predicates =
+                new ArrayList<HyperFindPredicate>();
+        for (String prefix : prefixes.values()) {
+            predicates.add(createPredicate(factories, props,
+                    BundleType.PREDICATE, prefix,
+                    props.getProperty(prefix + ".name", "")));
+        }
+
+        List<Filter> filters = new ArrayList<Filter>(codec.createFilters());
+        StringBuilder signature = new StringBuilder(codec.getSignature());
+        for (HyperFindPredicate p : predicates) {
+            filters.addAll(p.createFilters());
+            signature.append('\n').append(p.getSignature());
+        }
+        List<String> filterNames = new ArrayList<String>();
+        for (Filter f : filters) {
+            filterNames.add(f.getName());
+        }
+
+        CookieMap cookies = CookieMap.createDefaultCookieMap();
+        SearchFactory factory = new SearchFactory(filters, cookies);
+        ActivePredicateSet ps = new ActivePredicateSet(predicates, factory,
+                signature.toString());
+        List<HyperFindSearchMonitor> monitors = HyperFindSearchMonitorFactory
+                .getInterestedSearchMonitors(cookies, filters);
+
+        // no thumbnails or heatmaps
+        Set<String> attributes = new HashSet<String>();
+        attributes.add("Display-Name");
+        attributes.add("_ObjectID");
+        for (String name : filterNames) {
+            attributes.add(ScoreIndex.getAttributeName(name));
+            attributes.add(ResultRegions.getPatchAttributeName(name));
+        }
+        for (HyperFindSearchMonitor m : monitors) {
+            attributes.addAll(m.getPushAttributes());
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                output != null ? new FileOutputStream(output)
+                        : System.out, StandardCharsets.UTF_8), 1 << 16);
+        BatchSearch batch = new BatchSearch(format, out, filterNames);
+        long count = 0;
+        Search search = factory.createSearch(attributes);
+        try {
+            batch.writeHeader();
+            Result r;
+            while (count < limit && (r = search.getNextResult()) != null) {
+                HyperFindResult hr = new HyperFindResult(ps, r);
+                for (HyperFindSearchMonitor m : monitors) {
+                    m.notify(hr);
+                }
+                batch.write(hr);
+                count++;
+            }
+        } finally {
+            search.close();
+            for (HyperFindSearchMonitor m : monitors) {
+                m.stopped();
+                m.terminated();
+            }
+            out.flush();
+            if (output != null) {
+                out.close();
+            }
+        }
+        System.err.println(count + " results");
+        return 0;
+    }
+
+    private static HyperFindPredicate createPredicate(
+            Map<String, HyperFindPredicateFactory> factories,
+            Properties props, BundleType type, String prefix,
+            String instanceName) throws IOException {
+        String displayName = props.getProperty(prefix);
+        if (displayName == null) {
+            throw new IOException("No " + prefix + " in predicate set");
+        }
+        HyperFindPredicateFactory f = factories.get(type + ":"
+                + displayName.trim());
+        if (f == null) {
+            throw new IOException("No such " + type.toString().toLowerCase()
+                    + ": " + displayName);
+        }
+
+        String optionPrefix = prefix + ".option.";
+        Map<String, String> options = new HashMap<String, String>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(optionPrefix)) {
+                options.put(key.substring(optionPrefix.length()),
+                        props.getProperty(key));
+            }
+        }
+
+        List<BufferedImage> examples = new ArrayList<BufferedImage>();
+        String paths = props.getProperty(prefix + ".examples", "").trim();
+        if (!paths.isEmpty()) {
+            for (String path : paths.split(File.pathSeparator)) {
+                BufferedImage img;
+                try {
+                    img = ImageIO.read(new File(path));
+                } catch (IOException e) {
+                    throw new IOException("Cannot read example " + path, e);
+                }
+                if (img == null) {
+                    throw new IOException("Cannot read example " + path
+                            + ": unknown image format");
+                }
+                examples.add(img);
+            }
+        }
+
+        return f.createHeadlessPredicate(instanceName, options, examples);
+    }
+
+    private void writeHeader() throws IOException {
+        if (format == Format.CSV) {
+            StringBuilder sb = new StringBuilder("object,name");
+            for (String name : filterNames) {
+                sb.append(',').append(csv(name + " score"));
+            }
+            for (String name : filterNames) {
+                sb.append(',').append(csv(name + " patches"));
+            }
+            out.write(sb.append('\n').toString());
+        }
+    }
+
+    private void write(HyperFindResult hr) throws IOException {
+        String key = ResultExporter.objectKey(hr);
+        String name = hr.getName();
+        byte[] displayName = hr.getValue("Display-Name");
+        if (displayName != null) {
+            name = Util.extractString(displayName);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        if (format == Format.CSV) {
+            sb.append(csv(key)).append(',').append(csv(name));
+            for (String f : filterNames) {
+                String score = getScore(hr, f);
+                sb.append(',').append(score != null ? csv(score) : "");
+            }
+            for (String f : filterNames) {
+                StringBuilder patches = new StringBuilder();
+                for (BoundingBox b : hr.getRegions().getPatches(f)) {
+                    if (patches.length() > 0) {
+                        patches.append(';');
+                    }
+                    patches.append(b.getX0()).append(' ').append(b.getY0())
+                            .append(' ').append(b.getX1()).append(' ')
+                            .append(b.getY1()).append(' ')
+                            .append(b.getDistance());
+                }
+                sb.append(',').append(csv(patches.toString()));
+            }
+        } else {
+            sb.append("{\"object\":").append(json(key));
+            sb.append(",\"name\":").append(json(name));
+            sb.append(",\"scores\":{");
+            boolean first = true;
+            for (String f : filterNames) {
+                String score = getScore(hr, f);
+                if (score == null) {
+                    continue;
+                }
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(json(f)).append(':');
+                try {
+                    double d = Double.parseDouble(score);
+                    // Java accepts forms that JSON does not, like "+1",
+                    // ".5" or "0x1p3", so write the parsed value
+                    sb.append(Double.isNaN(d) || Double.isInfinite(d)
+                            ? json(score) : Double.toString(d));
+                } catch (NumberFormatException e) {
+                    sb.append(json(score));
+                }
+            }
+            sb.append("},\"patches\":{");
+            first = true;
+            for (String f : filterNames) {
+                List<BoundingBox> boxes = hr.getRegions().getPatches(f);
+                if (boxes.isEmpty()) {
+                    continue;
+                }
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(json(f)).append(":[");
+                for (int i = 0; i < boxes.size(); i++) {
+                    BoundingBox b = boxes.get(i);
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append('[').append(b.getX0()).append(',')
+                            .append(b.getY0()).append(',').append(b.getX1())
+                            .append(',').append(b.getY1()).append(',')
+                            .append(b.getDistance()).append(']');
+                }
+                sb.append(']');
+            }
+            sb.append("}}");
+        }
+        out.write(sb.append('\n').toString());
+    }
+
+    private static String getScore(HyperFindResult r, String filterName) {
+        byte[] value = r.getValue(ScoreIndex.getAttributeName(filterName));
+        return value != null ? Util.extractString(value) : null;
+    }
+
+    private static String csv(String s) {
+        if (s == null) {
+            return "";
+        }
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0
+                && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    private static String json(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
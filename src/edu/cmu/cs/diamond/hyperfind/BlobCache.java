@@ -0,0 +1,269 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Content-addressed store of encoded example images, kept on disk across
+ * runs.  Blobs are named by the SHA-256 of their bytes.  Examples are only
+ * encoded and stored where their encoding is needed, by session snapshots,
+ * and then at most once however many snapshots refer to them; predicate
+ * fingerprints hash the pixels instead.
+ * <p>
+ * Lives in hyperfind.blob-cache-dir (default ~/.hyperfind/blobs) and is
+ * trimmed to hyperfind.blob-cache-mb, least recently used first.  If the
+ * directory cannot be used, digests are still computed and memoized, but
+ * nothing is kept between runs.
+ */
+final class BlobCache {
+
+    private static final BlobCache DEFAULT = createDefault();
+
+    // null if blobs are not persisted
+    private final File dir;
+
+    private final long maxBytes;
+
+    // decoded or encoded image -> digest of its encoding; BufferedImage
+    // compares by identity, and examples are never modified once added
+    private final Map<BufferedImage, String> imageDigests =
+            new WeakHashMap<BufferedImage, String>();
+
+    BlobCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    static BlobCache getDefault() {
+        return DEFAULT;
+    }
+
+    private static BlobCache createDefault() {
+        String path = System.getProperty("hyperfind.blob-cache-dir");
+        File dir = path != null ? new File(path) : new File(
+                System.getProperty("user.home"), ".hyperfind/blobs");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("Cannot create blob cache " + dir);
+            dir = null;
+        }
+        long mb = Long.getLong("hyperfind.blob-cache-mb", 256);
+        return new BlobCache(dir, mb << 20);
+    }
+
+    /*
+     * Digest of the PNG encoding of image, encoding and storing it only
+     * the first time it is asked for.
+     */
+    String getDigest(BufferedImage image) throws IOException {
+        synchronized (imageDigests) {
+            String digest = imageDigests.get(image);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        return register(image, put(encode(image)));
+    }
+
+    /*
+     * The encoding of image, from the store if it is there.
+     */
+    byte[] getBytes(BufferedImage image) throws IOException {
+        byte[] data = get(getDigest(image));
+        return data != null ? data : encode(image);
+    }
+
+    /*
+     * Decode an encoded example, remembering its digest so that it is not
+     * encoded again.
+     */
+    BufferedImage decode(byte[] data) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image == null) {
+            throw new IOException("Unreadable example image");
+        }
+        register(image, put(data));
+        return image;
+    }
+
+    // stores data and returns its digest
+    String put(byte[] data) {
+        String digest = digest(data);
+        if (dir == null) {
+            return digest;
+        }
+        File f = file(digest);
+        if (f.exists()) {
+            f.setLastModified(System.currentTimeMillis());
+            return digest;
+        }
+        try {
+            f.getParentFile().mkdirs();
+            // never expose a partial blob under its digest
+            File part = File.createTempFile(digest, ".part",
+                    f.getParentFile());
+            try {
+                Files.write(part.toPath(), data);
+                Files.move(part.toPath(), f.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                part.delete();
+            }
+            trim();
+        } catch (IOException e) {
+            // the digest is still good; the blob is just not kept
+            e.printStackTrace();
+        }
+        return digest;
+    }
+
+    // null if the blob is not in the store or fails verification
+    byte[] get(String digest) {
+        if (dir == null) {
+            return null;
+        }
+        File f = file(digest);
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(f.toPath());
+            if (!digest.equals(digest(data))) {
+                f.delete();
+                return null;
+            }
+            f.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private String register(BufferedImage image, String digest) {
+        synchronized (imageDigests) {
+            imageDigests.put(image, digest);
+        }
+        return digest;
+    }
+
+    private File file(String digest) {
+        return new File(new File(dir, digest.substring(0, 2)), digest);
+    }
+
+    // drop the least recently used blobs until under budget
+    private synchronized void trim() {
+        List<File> files = new ArrayList<File>();
+        long total = 0;
+        File[] subdirs = dir.listFiles();
+        if (subdirs == null) {
+            return;
+        }
+        for (File sub : subdirs) {
+            File[] blobs = sub.listFiles();
+            if (blobs == null) {
+                continue;
+            }
+            for (File f : blobs) {
+                if (!f.getName().endsWith(".part")) {
+                    files.add(f);
+                    total += f.length();
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+        for (File f : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", buf);
+        return buf.toByteArray();
+    }
+
+    static String digest(byte[] data) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        byte[] d = md.digest(data);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : d) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -353,6 +353,26 @@ public class BundleOptionsFrame extends JFrame {
         public abstract JComponent getComponent();
 
         protected abstract String getEnabledValue();
+
+        protected abstract void setEnabledValue(String value);
+
+        /*
+         * Set the value getValue() should return, disabling the field
+         * instead if it can be disabled and value is its disabled value.
+         */
+        public void setValue(String value) {
+            if (enable != null) {
+                boolean disabled = value != null
+                        && value.equals(valueIfDisabled);
+                enable.setSelected(!disabled);
+                if (disabled) {
+                    return;
+                }
+            }
+            if (value != null) {
+                setEnabledValue(value);
+            }
+        }
     }
 
     private static class BooleanField extends OptionField {
@@ -381,6 +401,11 @@ public class BundleOptionsFrame extends JFrame {
         protected String getEnabledValue() {
             return (checkbox.getSelectedObjects() != null) ? "true" : "false";
         }
+
+        @Override
+        protected void setEnabledValue(String value) {
+            checkbox.setSelected(value.equals("true"));
+        }
     }
 
     private static class StringField extends OptionField {
@@ -435,6 +460,11 @@ public class BundleOptionsFrame extends JFrame {
         protected String getEnabledValue() {
             return field.getText();
         }
+
+        @Override
+        protected void setEnabledValue(String value) {
+            field.setText(value);
+        }
     }
 
     private static class NumberField extends OptionField {
@@ -549,7 +579,17 @@ public class BundleOptionsFrame extends JFrame {
             return string(((Double) spinner.getValue()).doubleValue());
         }
 
-        private String string(double d) {
+        @Override
+        protected void setEnabledValue(String value) {
+            try {
+                // the slider follows the spinner
+                spinner.setValue(Double.valueOf(value));
+            } catch (IllegalArgumentException e) {
+                // not a number, or out of range; keep the current value
+            }
+        }
+
+        private static String string(double d) {
             int i = (int) d;
             if (d == i) {
                 // Avoid trailing .0 if possible
@@ -608,6 +648,16 @@ public class BundleOptionsFrame extends JFrame {
         protected String getEnabledValue() {
             return choices[comboBox.getSelectedIndex()].getValue();
         }
+
+        @Override
+        protected void setEnabledValue(String value) {
+            for (int i = 0; i < choices.length; i++) {
+                if (choices[i].getValue().equals(value)) {
+                    comboBox.setSelectedIndex(i);
+                    return;
+                }
+            }
+        }
     }
 
     private static class ExampleField extends OptionField {
@@ -790,6 +840,11 @@ public class BundleOptionsFrame extends JFrame {
             return Integer.toString(model.getSize());
         }
 
+        @Override
+        protected void setEnabledValue(String value) {
+            // derived from the examples, which are added separately
+        }
+
         public void addExamples(List<BufferedImage> examples) {
             for (BufferedImage image : examples) {
                 model.addElement(new Example(image));
@@ -807,6 +862,76 @@ public class BundleOptionsFrame extends JFrame {
     }
 
 
+    /*
+     * The option map a new frame would return, computed without creating
+     * any Swing components, for headless use.
+     */
+    public static Map<String, String> getDefaultOptionMap(
+            List<OptionGroup> options, int exampleCount) {
+        Map<String, String> ret = new HashMap<String, String>();
+        for (OptionGroup group : options) {
+            for (Option option : group.getOptions()) {
+                Boolean initiallyEnabled = option.isInitiallyEnabled();
+                boolean enabled = initiallyEnabled == null
+                        || initiallyEnabled.booleanValue();
+                String value;
+                if (option instanceof BooleanOption) {
+                    value = ((BooleanOption) option).isDefault() ? "true"
+                            : "false";
+                } else if (option instanceof StringOption) {
+                    StringOption o = (StringOption) option;
+                    value = enabled ? o.getDefault() : o.getDisabledValue();
+                } else if (option instanceof NumberOption) {
+                    NumberOption o = (NumberOption) option;
+                    double d = o.getDefault();
+                    if (o.getMin() != null) {
+                        d = Math.max(d, o.getMin());
+                    }
+                    if (o.getMax() != null) {
+                        d = Math.min(d, o.getMax());
+                    }
+                    value = NumberField.string(enabled ? d
+                            : o.getDisabledValue());
+                } else if (option instanceof ChoiceOption) {
+                    ChoiceOption o = (ChoiceOption) option;
+                    value = null;
+                    for (Choice choice : o.getChoices()) {
+                        if (value == null || choice.isDefault()) {
+                            value = choice.getValue();
+                        }
+                    }
+                    if (!enabled) {
+                        value = o.getDisabledValue();
+                    }
+                } else if (option instanceof ExampleOption) {
+                    value = Integer.toString(exampleCount);
+                } else {
+                    throw new IllegalArgumentException("Unknown option type");
+                }
+                ret.put(option.getName(), value);
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Set options from a map returned by getOptionMap().  Options missing
+     * from the map keep their current values.
+     */
+    public void setOptionMap(Map<String, String> options) {
+        for (OptionField opt : optionFields) {
+            if (options.containsKey(opt.getName())) {
+                opt.setValue(options.get(opt.getName()));
+            }
+        }
+    }
+
+    public void setInstanceName(String name) {
+        if (instanceNameField != null) {
+            instanceNameField.setValue(name);
+        }
+    }
+
     public Map<String, String> getOptionMap() {
         Map<String, String> ret = new HashMap<String, String>();
         for (OptionField opt : optionFields) {
@@ -0,0 +1,191 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+import edu.cmu.cs.diamond.hyperfind.PipelineMetrics.Histogram;
+import edu.cmu.cs.diamond.hyperfind.PipelineMetrics.Stage;
+
+/**
+ * Live view of the PipelineMetrics: one row per pipeline stage and per
+ * search monitor with its latency distribution, followed by the search
+ * rate of each server, the batching of the result list and the object
+ * cache counters.
+ * Refreshes itself once a second while it is showing.
+ */
+final class DiagnosticsPanel extends JPanel {
+
+    private static final String[] COLUMNS = { "Stage", "Count", "Mean (ms)",
+            "Median (ms)", "95% (ms)", "Max (ms)" };
+
+    private final PipelineMetrics metrics;
+
+    private final Timer timer;
+
+    private final AbstractTableModel tableModel = new AbstractTableModel() {
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            return rows.get(row)[column];
+        }
+    };
+
+    private List<Object[]> rows = new ArrayList<Object[]>();
+
+    DiagnosticsPanel(PipelineMetrics metrics) {
+        super(new BorderLayout());
+        this.metrics = metrics;
+
+        JTable table = new JTable(tableModel);
+        table.setPreferredScrollableViewportSize(new Dimension(520, 220));
+        add(new JScrollPane(table));
+
+        timer = new Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+        refresh();
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        timer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    private void refresh() {
+        List<Object[]> r = new ArrayList<Object[]>();
+        for (Stage stage : Stage.values()) {
+            Histogram h = metrics.getHistogram(stage);
+            r.add(new Object[] { stage.getDescription(), h.getCount(),
+                    format(h.getMeanMillis()),
+                    format(h.getPercentileMillis(0.5)),
+                    format(h.getPercentileMillis(0.95)),
+                    format(h.getMaxMillis()) });
+        }
+        Map<String, Long> dropped = metrics.getMonitorDropped();
+        for (Map.Entry<String, Histogram> e :
+                metrics.getMonitorHistograms().entrySet()) {
+            Histogram h = e.getValue();
+            String name = "Monitor " + e.getKey();
+            Long d = dropped.get(e.getKey());
+            if (d != null) {
+                name += " (" + d + " dropped)";
+            }
+            r.add(new Object[] { name, h.getCount(),
+                    format(h.getMeanMillis()),
+                    format(h.getPercentileMillis(0.5)),
+                    format(h.getPercentileMillis(0.95)),
+                    format(h.getMaxMillis()) });
+        }
+        for (Map.Entry<String, Double> e :
+                metrics.getServerObjectsPerSecond().entrySet()) {
+            r.add(new Object[] { e.getKey(),
+                    String.format("%.1f objects/s", e.getValue()), "", "",
+                    "", "" });
+        }
+        Map<String, Long> list = metrics.getListCounts();
+        long updates = list.get("updates");
+        r.add(new Object[] { "Result list updates",
+                String.format("%d results in %d frames (%.1f per frame)",
+                list.get("results"), updates, updates == 0 ? 0.0
+                : (double) list.get("results") / updates),
+                "", "", "", "" });
+        Map<String, Long> cache = metrics.getObjectCacheCounts();
+        if (!cache.isEmpty()) {
+            r.add(new Object[] { "Object cache",
+                    String.format("%d hits, %d misses, %d evicted, %s",
+                    cache.get("hits"), cache.get("misses"),
+                    cache.get("evictions"), formatBytes(cache.get("bytes"))),
+                    "", "", "", "" });
+            r.add(new Object[] { "Object cache on disk",
+                    String.format("%d hits, %d evicted, %s",
+                    cache.get("spillHits"), cache.get("spillEvictions"),
+                    formatBytes(cache.get("spillBytes"))),
+                    "", "", "", "" });
+        }
+        rows = r;
+        tableModel.fireTableDataChanged();
+    }
+
+    private static String format(double millis) {
+        return String.format("%.2f", millis);
+    }
+
+    private static String formatBytes(long bytes) {
+        return String.format("%.1f MB", bytes / 1048576.0);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only record of an export into one directory, so an interrupted
+ * export can be rerun without refetching what it already saved.  Each line
+ * holds the object key, marker, path relative to the export directory,
+ * size and SHA-256 of the file and status; later lines for the same object
+ * and marker supersede earlier ones.
+ */
+final class ExportManifest implements Closeable {
+
+    static final String FILE_NAME = "manifest.tsv";
+
+    static final String DONE = "done";
+
+    static final String FAILED = "failed";
+
+    private static final String HEADER =
+            "# object\tmarker\tpath\tsize\tsha256\tstatus";
+
+    static final class Entry {
+        final String key;
+
+        final String marker;
+
+        // relative to the export directory; without extension if not done
+        final String path;
+
+        // -1 for failed objects
+        final long size;
+
+        final String checksum;
+
+        final String status;
+
+        Entry(String key, String marker, String path, long size,
+                String checksum, String status) {
+            this.key = key;
+            this.marker = marker;
+            this.path = path;
+            this.size = size;
+            this.checksum = checksum;
+            this.status = status;
+        }
+
+        boolean isDone() {
+            return DONE.equals(status);
+        }
+    }
+
+    // marker + '\t' + key -> latest entry
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private final BufferedWriter out;
+
+    private ExportManifest(BufferedWriter out) {
+        this.out = out;
+    }
+
+    /*
+     * Read the manifest in dir, if any, and open it for appending.
+     */
+    public static ExportManifest open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve(FILE_NAME);
+        boolean exists = Files.exists(file);
+
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (exists) {
+            BufferedReader in = Files.newBufferedReader(file,
+                    StandardCharsets.UTF_8);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    Entry e = parse(line);
+                    if (e != null) {
+                        entries.put(e.marker + '\t' + e.key, e);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        ExportManifest m = new ExportManifest(Files.newBufferedWriter(file,
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND));
+        m.entries.putAll(entries);
+        if (!exists) {
+            m.out.write(HEADER);
+            m.out.newLine();
+            m.out.flush();
+        }
+        return m;
+    }
+
+    public synchronized Entry get(String marker, String key) {
+        return entries.get(marker + '\t' + key);
+    }
+
+    // file names under marker's directory already claimed by some object
+    public synchronized Set<String> getNames(String marker) {
+        Set<String> names = new HashSet<String>();
+        for (Entry e : entries.values()) {
+            if (e.marker.equals(marker)) {
+                names.add(baseName(e.path));
+            }
+        }
+        return names;
+    }
+
+    /*
+     * Append an entry and flush it, so it survives a crash.
+     */
+    public synchronized void record(Entry e) throws IOException {
+        entries.put(e.marker + '\t' + e.key, e);
+        out.write(encode(e.key) + '\t' + encode(e.marker) + '\t'
+                + encode(e.path) + '\t' + e.size + '\t' + e.checksum + '\t'
+                + e.status);
+        out.newLine();
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    // last path component, without extension
+    static String baseName(String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static Entry parse(String line) {
+        if (line.startsWith("#")) {
+            return null;
+        }
+        String[] fields = line.split("\t");
+        try {
+            if (fields.length != 6) {
+                // a line cut short by a crash
+                return null;
+            }
+            return new Entry(decode(fields[0]), decode(fields[1]),
+                    decode(fields[2]), Long.parseLong(fields[3]), fields[4],
+                    fields[5]);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
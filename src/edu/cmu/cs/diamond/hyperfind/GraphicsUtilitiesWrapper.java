@@ -53,8 +53,6 @@ final class GraphicsUtilitiesWrapper {
     };
 
     static private Method toCompatibleImageImpl;
-    static private Method getPixelsImpl;
-    static private Method setPixelsImpl;
 
     static {
         // find class
@@ -71,12 +69,6 @@ final class GraphicsUtilitiesWrapper {
             try {
                 toCompatibleImageImpl = wrappedClass.getMethod(
                         "toCompatibleImage", BufferedImage.class);
-                getPixelsImpl = wrappedClass.getMethod("getPixels",
-                        BufferedImage.class, int.class, int.class, int.class,
-                        int.class, int[].class);
-                setPixelsImpl = wrappedClass.getMethod("setPixels",
-                        BufferedImage.class, int.class, int.class, int.class,
-                        int.class, int[].class);
             } catch (NoSuchMethodException e) {
                 e.printStackTrace();
                 wrappedClass = null;
@@ -86,8 +78,6 @@ final class GraphicsUtilitiesWrapper {
         // fallback
         if (wrappedClass == null) {
             toCompatibleImageImpl = null;
-            getPixelsImpl = null;
-            setPixelsImpl = null;
         }
     }
 
@@ -104,34 +94,4 @@ final class GraphicsUtilitiesWrapper {
             throw new WrappedClassException();
         }
     }
-
-    public static int[] getPixels(BufferedImage img, int x, int y, int w,
-            int h, int[] pixels) {
-        if (getPixelsImpl == null) {
-            throw new WrappedClassException();
-        }
-        try {
-            return (int[]) getPixelsImpl.invoke(null, img, x, y, w, h, pixels);
-        } catch (IllegalAccessException e) {
-            throw new WrappedClassException();
-        } catch (InvocationTargetException e) {
-            // method doesn't throw
-            throw new WrappedClassException();
-        }
-    }
-
-    public static void setPixels(BufferedImage img, int x, int y, int w,
-            int h, int[] pixels) {
-        if (setPixelsImpl == null) {
-            throw new WrappedClassException();
-        }
-        try {
-            setPixelsImpl.invoke(null, img, x, y, w, h, pixels);
-        } catch (IllegalAccessException e) {
-            throw new WrappedClassException();
-        } catch (InvocationTargetException e) {
-            // method doesn't throw
-            throw new WrappedClassException();
-        }
-    }
 }
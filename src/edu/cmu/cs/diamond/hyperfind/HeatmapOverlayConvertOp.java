@@ -48,11 +48,50 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
 
+/**
+ * Converts a grayscale heatmap into a translucent overlay of a single
+ * color, with opacity proportional to heatmap intensity.
+ *
+ * Besides the BufferedImageOp interface, composite() blends a heatmap
+ * straight into a destination image of any size, working directly on the
+ * DataBuffers of the common image types and reusing per-thread scratch
+ * buffers, so that no intermediate overlay image is created.
+ */
 class HeatmapOverlayConvertOp implements BufferedImageOp {
+    /*
+     * Intensity of each TYPE_BYTE_GRAY sample as getRGB() reports it.
+     * The gray color space is linear, so getRGB() brightens the raw
+     * samples; heatmaps have always been read through that conversion.
+     */
+    private static final int[] GRAY_INTENSITY = grayIntensities();
+
+    // the TYPE_BYTE_GRAY sample closest to each intensity
+    private static final int[] GRAY_SAMPLE = graySamples();
+
+    private static final ThreadLocal<Scratch> scratch =
+            new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
     private final Color overlayColor;
 
+    private final int red;
+
+    private final int green;
+
+    private final int blue;
+
+    private final int baseAlpha;
+
     public HeatmapOverlayConvertOp(Color overlayColor) {
         this.overlayColor = overlayColor;
+        red = overlayColor.getRed();
+        green = overlayColor.getGreen();
+        blue = overlayColor.getBlue();
+        baseAlpha = overlayColor.getAlpha();
     }
 
     public Color getOverlayColor() {
@@ -94,28 +133,231 @@ class HeatmapOverlayConvertOp implements BufferedImageOp {
             dest = createCompatibleDestImage(src, null);
         }
 
-        final int rgb = (overlayColor.getRed() << 16) |
-                        (overlayColor.getGreen() << 8) |
-                        overlayColor.getBlue();
-        final int baseAlpha = overlayColor.getAlpha();
+        final int rgb = (red << 16) | (green << 8) | blue;
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        int[] alpha = scratch.get().prepare(width, width);
 
-        int[] pixels = GraphicsUtilitiesWrapper.getPixels(src, 0, 0,
-                src.getWidth(), src.getHeight(), null);
-        for (int i = 0; i < pixels.length; i++) {
-            int a = (pixels[i] & 0xff) * baseAlpha / 255;
-            pixels[i] = (a << 24) | rgb;
+        for (int y = 0; y < height; y++) {
+            readAlphaRow(src, y, width, alpha);
+            if (dest.getType() == BufferedImage.TYPE_INT_ARGB) {
+                int[] data = intData(dest);
+                int i = rowOffset(dest.getRaster(), y, 1);
+                for (int x = 0; x < width; x++) {
+                    data[i + x] = (alpha[x] << 24) | rgb;
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    dest.setRGB(x, y, (alpha[x] << 24) | rgb);
+                }
+            }
         }
-        GraphicsUtilitiesWrapper.setPixels(dest, 0, 0, src.getWidth(),
-                src.getHeight(), pixels);
 
         return dest;
     }
 
+    /**
+     * Blends the overlay for heatmap into dest, scaling the heatmap to the
+     * dimensions of dest with nearest-neighbor sampling.
+     */
+    public void composite(BufferedImage heatmap, BufferedImage dest) {
+        final int width = dest.getWidth();
+        final int height = dest.getHeight();
+        final int srcHeight = heatmap.getHeight();
+        int[] alpha = scratch.get().prepare(heatmap.getWidth(), width);
+
+        for (int y = 0; y < height; y++) {
+            readAlphaRow(heatmap, (int) ((long) y * srcHeight / height),
+                    width, alpha);
+            blendRow(dest, y, width, alpha);
+        }
+    }
+
+    /*
+     * Fills alpha[0..width) with overlay opacities for source row y,
+     * sampled at the columns prepared in the thread's scratch buffer.
+     */
+    private void readAlphaRow(BufferedImage src, int y, int width,
+            int[] alpha) {
+        int[] columns = scratch.get().columns;
+        WritableRaster raster = src.getRaster();
+        if (isByteGray(src)) {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int base = rowOffset(raster, y, 1);
+            for (int x = 0; x < width; x++) {
+                alpha[x] = GRAY_INTENSITY[data[base + columns[x]] & 0xff] *
+                        baseAlpha / 255;
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                alpha[x] = (src.getRGB(columns[x], y) & 0xff) *
+                        baseAlpha / 255;
+            }
+        }
+    }
+
+    private void blendRow(BufferedImage dest, int y, int width,
+            int[] alpha) {
+        switch (dest.getType()) {
+        case BufferedImage.TYPE_INT_RGB: {
+            int[] data = intData(dest);
+            int i = rowOffset(dest.getRaster(), y, 1);
+            for (int x = 0; x < width; x++, i++) {
+                data[i] = blendOpaque(data[i], alpha[x]);
+            }
+            break;
+        }
+        case BufferedImage.TYPE_INT_ARGB: {
+            int[] data = intData(dest);
+            int i = rowOffset(dest.getRaster(), y, 1);
+            for (int x = 0; x < width; x++, i++) {
+                data[i] = blendOver(data[i], alpha[x]);
+            }
+            break;
+        }
+        case BufferedImage.TYPE_3BYTE_BGR: {
+            WritableRaster raster = dest.getRaster();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int i = rowOffset(raster, y, 3);
+            for (int x = 0; x < width; x++, i += 3) {
+                int a = alpha[x];
+                if (a != 0) {
+                    data[i] = (byte) mix(data[i] & 0xff, blue, a);
+                    data[i + 1] = (byte) mix(data[i + 1] & 0xff, green, a);
+                    data[i + 2] = (byte) mix(data[i + 2] & 0xff, red, a);
+                }
+            }
+            break;
+        }
+        default:
+            for (int x = 0; x < width; x++) {
+                if (alpha[x] != 0) {
+                    dest.setRGB(x, y, blendOver(dest.getRGB(x, y), alpha[x]));
+                }
+            }
+        }
+    }
+
+    private int blendOpaque(int rgb, int a) {
+        if (a == 0) {
+            return rgb;
+        }
+        return (rgb & 0xff000000) |
+                (mix((rgb >> 16) & 0xff, red, a) << 16) |
+                (mix((rgb >> 8) & 0xff, green, a) << 8) |
+                mix(rgb & 0xff, blue, a);
+    }
+
+    // Porter-Duff "over" for non-premultiplied ARGB
+    private int blendOver(int argb, int a) {
+        if (a == 0) {
+            return argb;
+        }
+        int destA = argb >>> 24;
+        if (destA == 255) {
+            return blendOpaque(argb, a);
+        }
+        int outA = a + destA * (255 - a) / 255;
+        int destWeight = destA * (255 - a) / 255;
+        return (outA << 24) |
+                (((red * a + ((argb >> 16) & 0xff) * destWeight) / outA) << 16) |
+                (((green * a + ((argb >> 8) & 0xff) * destWeight) / outA) << 8) |
+                ((blue * a + (argb & 0xff) * destWeight) / outA);
+    }
+
+    private static int mix(int dest, int src, int a) {
+        return (dest * (255 - a) + src * a + 127) / 255;
+    }
+
+    /*
+     * The heatmap intensity of a TYPE_BYTE_GRAY sample; for other images
+     * it is the low byte of getRGB().
+     */
+    static int grayIntensity(int sample) {
+        return GRAY_INTENSITY[sample];
+    }
+
+    static int graySample(int intensity) {
+        return GRAY_SAMPLE[intensity];
+    }
+
+    private static int[] graySamples() {
+        int[] samples = new int[256];
+        int s = 0;
+        for (int i = 0; i < 256; i++) {
+            // intensities only grow with the sample
+            while (s < 255 && Math.abs(GRAY_INTENSITY[s + 1] - i)
+                    <= Math.abs(GRAY_INTENSITY[s] - i)) {
+                s++;
+            }
+            samples[i] = s;
+        }
+        return samples;
+    }
+
+    private static int[] grayIntensities() {
+        BufferedImage img = new BufferedImage(256, 1,
+                BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = img.getRaster();
+        for (int i = 0; i < 256; i++) {
+            raster.setSample(i, 0, 0, i);
+        }
+        int[] intensity = new int[256];
+        img.getRGB(0, 0, 256, 1, intensity, 0, 256);
+        for (int i = 0; i < 256; i++) {
+            intensity[i] &= 0xff;
+        }
+        return intensity;
+    }
+
+    private static boolean isByteGray(BufferedImage img) {
+        return img.getType() == BufferedImage.TYPE_BYTE_GRAY &&
+                img.getRaster().getDataBuffer() instanceof DataBufferByte;
+    }
+
+    private static int[] intData(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    // index of the first element of row y in the raster's data array
+    private static int rowOffset(WritableRaster raster, int y,
+            int pixelStride) {
+        int scanlineStride;
+        SampleModel sm = raster.getSampleModel();
+        if (sm instanceof SinglePixelPackedSampleModel) {
+            scanlineStride =
+                    ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+        } else {
+            scanlineStride = ((ComponentSampleModel) sm).getScanlineStride();
+        }
+        return raster.getDataBuffer().getOffset() +
+                (y - raster.getSampleModelTranslateY()) * scanlineStride -
+                raster.getSampleModelTranslateX() * pixelStride;
+    }
+
+    // per-thread buffers, grown as needed and reused between calls
+    private static class Scratch {
+        int[] columns = new int[0];
+
+        int[] alpha = new int[0];
+
+        // map destination columns to source columns; returns alpha buffer
+        int[] prepare(int srcWidth, int destWidth) {
+            if (columns.length < destWidth) {
+                columns = new int[destWidth];
+                alpha = new int[destWidth];
+            }
+            for (int x = 0; x < destWidth; x++) {
+                columns[x] = (int) ((long) x * srcWidth / destWidth);
+            }
+            return alpha;
+        }
+    }
+
     @Override
     public Rectangle2D getBounds2D(BufferedImage src) {
         return new Rectangle(src.getWidth(), src.getHeight());
     }
-
     @Override
     public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
         if (dstPt == null) {
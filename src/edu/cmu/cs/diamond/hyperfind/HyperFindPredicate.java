@@ -43,6 +43,9 @@ package edu.cmu.cs.diamond.hyperfind;
 import java.awt.Component;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -50,19 +53,57 @@ import javax.swing.event.ChangeListener;
 import edu.cmu.cs.diamond.opendiamond.Bundle;
 import edu.cmu.cs.diamond.opendiamond.BundleType;
 import edu.cmu.cs.diamond.opendiamond.Filter;
+import edu.cmu.cs.diamond.opendiamond.bundle.ExampleOption;
+import edu.cmu.cs.diamond.opendiamond.bundle.Option;
+import edu.cmu.cs.diamond.opendiamond.bundle.OptionGroup;
 
 public class HyperFindPredicate {
+    // bump when the fingerprint encoding changes
+    private static final int FINGERPRINT_VERSION = 3;
+
+    private static final int FILTER_CACHE_SIZE = Integer.getInteger(
+            "hyperfind.filter-cache-size", 64);
+
+    // fingerprint -> filters, shared by all predicates, so that a
+    // predicate set back to earlier options, or a copy of another one,
+    // does not build its filters again
+    private static final Map<String, List<Filter>> filterCache =
+            new LinkedHashMap<String, List<Filter>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, List<Filter>> eldest) {
+            return size() > FILTER_CACHE_SIZE;
+        }
+    };
+
+    // example image -> digest of its pixels; examples are never modified
+    // once added, and BufferedImage compares by identity
+    private static final Map<BufferedImage, String> exampleDigests =
+            new WeakHashMap<BufferedImage, String>();
+
     private final List<ChangeListener> listeners =
             new ArrayList<ChangeListener>();
 
     private final Bundle bundle;
 
+    // null for headless predicates, which use the fields below instead
     private final BundleOptionsFrame frame;
 
+    private final String instanceName;
+
+    private final Map<String, String> options;
+
+    private final List<BufferedImage> examples;
+
     private List<Filter> cachedFilters;
 
+    private String fingerprint;
+
     HyperFindPredicate(Bundle bundle) throws IOException {
         this.bundle = bundle;
+        this.instanceName = null;
+        this.options = null;
+        this.examples = null;
         if (bundle.getType() == BundleType.CODEC) {
             this.frame = new BundleOptionsFrame(bundle.getDisplayName(),
                     bundle.getOptions());
@@ -75,23 +116,37 @@ public class HyperFindPredicate {
             @Override
             public void stateChanged(ChangeEvent e) {
                 // Invalidate any cached filters
-                cachedFilters = null;
+                invalidate();
                 // Pass option changes along to our listeners
                 fireChangeEvent();
             }
         });
     }
 
+    /*
+     * Create a predicate with fixed options and no editor, for use without
+     * a display.  examples is null if the bundle takes no examples.
+     */
+    HyperFindPredicate(Bundle bundle, String instanceName,
+            Map<String, String> options, List<BufferedImage> examples) {
+        this.bundle = bundle;
+        this.frame = null;
+        this.instanceName = instanceName;
+        this.options = new HashMap<String, String>(options);
+        this.examples = examples == null ? null
+                : new ArrayList<BufferedImage>(examples);
+    }
+
     public boolean isEditable() {
-        return frame.isEditable();
+        return frame != null && frame.isEditable();
     }
 
     public boolean needsExamples() {
-        return frame.needsExamples();
+        return frame != null ? frame.needsExamples() : examples != null;
     }
 
     public boolean missingExamples() {
-        return frame.needsExamples() && frame.getExamples().size() == 0;
+        return needsExamples() && getExamples().size() == 0;
     }
 
     public String getPredicateName() {
@@ -99,7 +154,7 @@ public class HyperFindPredicate {
     }
 
     public String getInstanceName() {
-        return frame.getInstanceName();
+        return frame != null ? frame.getInstanceName() : instanceName;
     }
 
     public List<String> getFilterNames() {
@@ -114,32 +169,191 @@ public class HyperFindPredicate {
         return names;
     }
 
+    /*
+     * Identifies the filters this predicate currently creates, for keying
+     * cached objects.  Call on the AWT thread.
+     */
+    public String getSignature() {
+        return getFingerprint();
+    }
+
+    /*
+     * Digest of everything the filters are built from: the bundle, the
+     * option values and the pixels of the examples, but not the instance
+     * name.  Computed once per change of options or examples, and the
+     * same in every session.
+     */
+    String getFingerprint() {
+        if (fingerprint == null) {
+            MessageDigest md = newDigest();
+            update(md, Integer.toString(FINGERPRINT_VERSION));
+            update(md, bundle.getType().toString());
+            update(md, getPredicateName());
+            for (Map.Entry<String, String> e : new TreeMap<String, String>(
+                    getOptionMap()).entrySet()) {
+                update(md, e.getKey());
+                update(md, e.getValue());
+            }
+            if (needsExamples()) {
+                for (BufferedImage ex : getExamples()) {
+                    update(md, getExampleDigest(ex));
+                }
+            }
+            fingerprint = FINGERPRINT_VERSION + ":" + toHex(md.digest());
+        }
+        return fingerprint;
+    }
+
     public void edit() {
         if (isEditable()) {
             frame.setVisible(true);
         }
     }
 
+    /*
+     * Restore state saved from getInstanceName(), getOptionMap() and
+     * getExamples() into the editor.
+     */
+    void restore(String instanceName, Map<String, String> options,
+            List<BufferedImage> examples) {
+        if (frame == null) {
+            throw new IllegalStateException("Predicate has no editor");
+        }
+        if (instanceName != null) {
+            frame.setInstanceName(instanceName);
+        }
+        frame.setOptionMap(options);
+        if (needsExamples() && !examples.isEmpty()) {
+            frame.addExamples(examples);
+        }
+    }
+
     public void addExamples(List<BufferedImage> examples) {
-        frame.addExamples(examples);
+        if (frame != null) {
+            frame.addExamples(examples);
+        } else if (this.examples != null) {
+            this.examples.addAll(examples);
+            options.put(exampleOptionName(), Integer.toString(
+                    this.examples.size()));
+            invalidate();
+        }
     }
 
     public List<Filter> createFilters() throws IOException {
         if (cachedFilters == null) {
+            String fp = getFingerprint();
             List<Filter> list;
-            if (frame.needsExamples()) {
-                list = bundle.getFilters(frame.getOptionMap(),
-                        frame.getExamples());
-            } else {
-                list = bundle.getFilters(frame.getOptionMap());
+            synchronized (filterCache) {
+                list = filterCache.get(fp);
+            }
+            if (list == null) {
+                if (needsExamples()) {
+                    list = bundle.getFilters(getOptionMap(), getExamples());
+                } else {
+                    list = bundle.getFilters(getOptionMap());
+                }
+                list = Collections.unmodifiableList(list);
+                synchronized (filterCache) {
+                    filterCache.put(fp, list);
+                }
             }
-            cachedFilters = Collections.unmodifiableList(list);
+            cachedFilters = list;
         }
         return cachedFilters;
     }
 
+    private void invalidate() {
+        cachedFilters = null;
+        fingerprint = null;
+    }
+
     public void dispose() {
-        frame.dispose();
+        if (frame != null) {
+            frame.dispose();
+        }
+    }
+
+    Map<String, String> getOptionMap() {
+        return frame != null ? frame.getOptionMap() : options;
+    }
+
+    // null if the predicate takes no examples
+    List<BufferedImage> getExamples() {
+        return frame != null ? frame.getExamples() : examples;
+    }
+
+    /*
+     * Hashes the pixels rather than an encoding, which would cost far more
+     * and could differ between image codecs.
+     */
+    private static String getExampleDigest(BufferedImage image) {
+        synchronized (exampleDigests) {
+            String digest = exampleDigests.get(image);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        MessageDigest md = newDigest();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        update(md, w + "x" + h);
+        int[] row = new int[w];
+        byte[] bytes = new byte[4 * w];
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++) {
+                bytes[4 * x] = (byte) (row[x] >>> 24);
+                bytes[4 * x + 1] = (byte) (row[x] >>> 16);
+                bytes[4 * x + 2] = (byte) (row[x] >>> 8);
+                bytes[4 * x + 3] = (byte) row[x];
+            }
+            md.update(bytes);
+        }
+        String digest = toHex(md.digest());
+        synchronized (exampleDigests) {
+            exampleDigests.put(image, digest);
+        }
+        return digest;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // length-prefixed, so that field boundaries are unambiguous
+    private static void update(MessageDigest md, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        md.update(new byte[] { (byte) (b.length >>> 24),
+                (byte) (b.length >>> 16), (byte) (b.length >>> 8),
+                (byte) b.length });
+        md.update(b);
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private String exampleOptionName() {
+        try {
+            for (OptionGroup group : bundle.getOptions()) {
+                for (Option option : group.getOptions()) {
+                    if (option instanceof ExampleOption) {
+                        return option.getName();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        throw new IllegalStateException("Bundle takes no examples");
     }
 
     public void addChangeListener(ChangeListener l) {
@@ -161,19 +375,4 @@ public class HyperFindPredicate {
     public String toString() {
         return getPredicateName();
     }
-
-    @Override
-    public int hashCode() {
-        return getPredicateName().hashCode() + getFilterNames().hashCode();
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-        if (obj instanceof HyperFindPredicate) {
-            HyperFindPredicate p = (HyperFindPredicate) obj;
-            return getPredicateName().equals(p.getPredicateName()) &&
-                    getFilterNames().equals(p.getFilterNames());
-        }
-        return false;
-    }
 }
@@ -94,6 +94,24 @@ public class HyperFindPredicateFactory {
         return predicate;
     }
 
+    /*
+     * Create a predicate without an options editor, for use without a
+     * display.  Options not given in options take their defaults.
+     */
+    public HyperFindPredicate createHeadlessPredicate(String instanceName,
+            Map<String, String> options, List<BufferedImage> examples)
+            throws IOException {
+        if (!needsExamples) {
+            examples = null;
+        } else if (examples == null) {
+            examples = Collections.emptyList();
+        }
+        Map<String, String> map = BundleOptionsFrame.getDefaultOptionMap(
+                bundle.getOptions(), needsExamples ? examples.size() : 0);
+        map.putAll(options);
+        return new HyperFindPredicate(bundle, instanceName, map, examples);
+    }
+
     public static HyperFindPredicate createHyperFindPredicate(
             BundleFactory bundleFactory, URI uri) throws IOException {
         // System.out.println("trying " + uri);
@@ -40,26 +40,117 @@
 
 package edu.cmu.cs.diamond.hyperfind;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 import javax.swing.SwingUtilities;
 
+import edu.cmu.cs.diamond.opendiamond.ObjectIdentifier;
 import edu.cmu.cs.diamond.opendiamond.Result;
 
+/**
+ * A search result.  A result starts out wrapping the {@link Result} the
+ * search returned; once it has been shown and every search monitor has
+ * seen it, its attributes can be moved to a {@link ResultStore}, leaving
+ * only a small handle on the heap.  They stay on the heap while a monitor
+ * that uses the Result is installed.
+ */
 public class HyperFindResult {
 
     private final ActivePredicateSet predicateSet;
 
-    private final Result result;
+    private final String name;
+
+    // null if restored from a session snapshot
+    private final ObjectIdentifier objectID;
 
     private final ResultRegions regions;
 
+    // null once the attributes are in a store
+    private volatile Result result;
+
+    private volatile ResultStore store;
+
+    private volatile long address;
+
     public HyperFindResult(ActivePredicateSet predicateSet, Result result) {
         this.predicateSet = predicateSet;
         this.result = result;
-        this.regions = new ResultRegions(predicateSet.getFilterNames(),
-                result);
+        this.name = result.getName();
+        this.objectID = result.getObjectIdentifier();
+        this.regions = new ResultRegions(predicateSet.getFilterNames(), this);
+    }
+
+    /*
+     * A result restored from a session snapshot.  It has no object
+     * identifier, so it cannot be reexecuted or exported.
+     */
+    HyperFindResult(ActivePredicateSet predicateSet, String name,
+            Map<String, byte[]> attributes, ResultStore store)
+            throws IOException {
+        this.predicateSet = predicateSet;
+        this.name = name;
+        this.objectID = null;
+        this.address = store.append(attributes);
+        this.store = store;
+        this.regions = new ResultRegions(predicateSet.getFilterNames(), this);
+    }
+
+    /*
+     * previous reevaluated under a new predicate set: its attributes,
+     * updated with those of r.  Stored right away, since nothing needs
+     * the Result.
+     */
+    HyperFindResult(ActivePredicateSet predicateSet,
+            HyperFindResult previous, Result r, ResultStore store)
+            throws IOException {
+        Map<String, byte[]> attributes = new LinkedHashMap<String, byte[]>();
+        for (String k : previous.getKeys()) {
+            attributes.put(k, previous.getValue(k));
+        }
+        for (String k : r.getKeys()) {
+            byte[] v = r.getValue(k);
+            if (v != null) {
+                attributes.put(k, v);
+            }
+        }
+        this.predicateSet = predicateSet;
+        this.name = previous.getName();
+        this.objectID = previous.getObjectIdentifier();
+        this.address = store.append(attributes);
+        this.store = store;
+        this.regions = new ResultRegions(predicateSet.getFilterNames(), this);
+    }
+
+    /*
+     * Move the attributes into the store and drop the Result.  Call at
+     * most once; readers may run concurrently.
+     */
+    void moveTo(ResultStore s) throws IOException {
+        Result r = result;
+        if (r == null) {
+            return;
+        }
+        Map<String, byte[]> attributes = new LinkedHashMap<String, byte[]>();
+        for (String k : r.getKeys()) {
+            byte[] v = r.getValue(k);
+            if (v != null) {
+                attributes.put(k, v);
+            }
+        }
+        address = s.append(attributes);
+        store = s;
+        // readers that see no result will see the store
+        result = null;
     }
 
     public void popup() {
+        if (predicateSet.getMain() == null) {
+            // headless search
+            return;
+        }
         final HyperFindResult r = this;
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -73,10 +164,42 @@ public class HyperFindResult {
         return predicateSet;
     }
 
+    /**
+     * Returns null for restored results.  Results of a live search keep
+     * their Result while a search monitor that uses it is installed; see
+     * {@link HyperFindSearchMonitor#usesResult()}.
+     *
+     * @deprecated use {@link #getValue(String)} and {@link #getKeys()},
+     * which work for every result
+     */
+    @Deprecated
     public Result getResult() {
         return result;
     }
 
+    public boolean isRestored() {
+        return objectID == null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getValue(String key) {
+        Result r = result;
+        return r != null ? r.getValue(key) : store.getValue(address, key);
+    }
+
+    public Set<String> getKeys() {
+        Result r = result;
+        return r != null ? r.getKeys() : store.getKeys(address);
+    }
+
+    // null for restored results
+    public ObjectIdentifier getObjectIdentifier() {
+        return objectID;
+    }
+
     public ResultRegions getRegions() {
         return regions;
     }
@@ -50,13 +50,57 @@ import java.util.Set;
 public abstract class HyperFindSearchMonitor {
 
     /*
-     * Called each time a search result returns.
+     * What to do with new results when the monitor has fallen behind and
+     * its queue is full: wait for room, which slows the whole result
+     * stream down to the monitor's pace; drop the new results; or keep a
+     * sample of them, evicting the oldest queued result for one of every
+     * hyperfind.monitor-sample-interval new ones.
+     */
+    public enum OverflowPolicy {
+        BLOCK, DROP, SAMPLE
+    }
+
+    /*
+     * Called each time a search result returns.  Monitors are notified on
+     * a thread of their own, in the order results were shown.
+     * Read attributes through hr.getValue() and hr.getKeys(); see
+     * usesResult().
      */
     public abstract void notify(HyperFindResult hr) throws InterruptedException;
 
+    /*
+     * Called with results that were queued for this monitor together.
+     * Override this to handle them in one go.
+     */
+    public void notify(List<HyperFindResult> results)
+            throws InterruptedException {
+        for (HyperFindResult hr : results) {
+            notify(hr);
+        }
+    }
+
+    /*
+     * The policy for this monitor's queue.  Defaults to the
+     * hyperfind.monitor-overflow property (block, drop or sample), or
+     * BLOCK if that is not set.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        String policy = System.getProperty("hyperfind.monitor-overflow");
+        if (policy != null) {
+            try {
+                return OverflowPolicy.valueOf(policy.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown monitor overflow policy "
+                        + policy);
+            }
+        }
+        return OverflowPolicy.BLOCK;
+    }
+
     /*
      * Called when the user has stopped the current search but results are still
-     * available for browsing.
+     * available for browsing.  Called on the monitor's own thread, after
+     * the last notify().
      */
     public void stopped() {
     }
@@ -75,6 +119,17 @@ public abstract class HyperFindSearchMonitor {
     public void selectionChanged(List<HyperFindResult> selected) {
     }
 
+    /*
+     * Returns true if this monitor calls HyperFindResult.getResult(), here
+     * or later on.  While such a monitor is installed, results keep their
+     * Result on the heap.  Monitors that only use getValue() and getKeys()
+     * should return false, so that results can move to the off-heap
+     * store.
+     */
+    public boolean usesResult() {
+        return true;
+    }
+
     /*
      * Returns a list of attributes that this SearchMonitor intends to access.
      */
@@ -205,11 +205,9 @@ class ImageRegionsLabel extends JLabel {
                 entireImage.height, BufferedImage.TYPE_INT_ARGB);
 
         // compute merged overlay
-        Graphics2D g = image.createGraphics();
         for (BufferedImage heatmap : heatmaps) {
-            g.drawImage(heatmap, op, 0, 0);
+            op.composite(heatmap, image);
         }
-        g.dispose();
 
         return image;
     }
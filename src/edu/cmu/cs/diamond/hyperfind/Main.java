@@ -44,9 +44,10 @@ import java.awt.*;
 import java.awt.datatransfer.Clipboard;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.*;
 import java.lang.reflect.Field;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -55,6 +56,8 @@ import java.util.concurrent.*;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -81,6 +84,35 @@ public final class Main {
 
     private final JComboBox codecs;
 
+    // objects being fetched or written at once by the Download button
+    private static final int EXPORT_IN_FLIGHT =
+            Integer.getInteger("hyperfind.export-in-flight", 8);
+
+    private static final String SESSION_EXTENSION = "hfsession";
+
+    private static final FileNameExtensionFilter SESSION_FILE_FILTER =
+            new FileNameExtensionFilter("HyperFind sessions",
+                    SESSION_EXTENSION);
+
+    private final ObjectCache objectCache = ObjectCache.createDefault();
+
+    private final List<HyperFindPredicateFactory> predicateFactories;
+
+    // results in the list were restored from a session snapshot
+    private boolean restoredSession;
+
+    // codec and predicate signatures of the search that found the current
+    // results; null if there is none
+    private String lastCodecSignature;
+
+    private Set<String> lastPredicateSignatures;
+
+    // in-flight reexecutions; accessed only on the AWT thread
+    private final Map<ObjectIdentifier,
+            SwingWorker<HyperFindResult, Object>> reexecutions =
+            new HashMap<ObjectIdentifier,
+                    SwingWorker<HyperFindResult, Object>>();
+
     public static class Marker {
         public final String name;
         public final Color color;
@@ -97,6 +129,8 @@ public final class Main {
         }
     }
 
+    private static final String ALL_RESULTS = "All results";
+
     final static Marker[] markerList = new Marker[]{
             new Marker("True-Pos", Color.GREEN),
             new Marker("False-Pos", Color.RED),
@@ -105,9 +139,11 @@ public final class Main {
 
     private Main(JFrame frame, ThumbnailBox results, PredicateListModel model,
                  CookieMap initialCookieMap,
+                 List<HyperFindPredicateFactory> predicateFactories,
                  List<HyperFindPredicateFactory> examplePredicateFactories,
                  JComboBox codecs) {
         this.frame = frame;
+        this.predicateFactories = predicateFactories;
         this.results = results;
         this.model = model;
         this.cookies = initialCookieMap;
@@ -158,7 +194,11 @@ public final class Main {
         final JFrame frame = new JFrame("HyperFind");
         JButton startButton = new JButton("Start");
         JButton stopButton = new JButton("Stop");
+        final JButton refineButton = new JButton("Refine");
         JButton defineScopeButton = new JButton("Define Scope");
+        JButton saveSessionButton = new JButton("Save Session...");
+        JButton loadSessionButton = new JButton("Load Session...");
+        JButton diagnosticsButton = new JButton("Diagnostics");
         final JList resultsList = new JList();
         final StatisticsBar stats = new StatisticsBar();
 
@@ -229,7 +269,7 @@ public final class Main {
 
         /* Create the Main object */
         final Main m = new Main(frame, results, model, defaultCookieMap,
-                examplePredicateFactories, codecs);
+                factories, examplePredicateFactories, codecs);
 
 
         /* Set TransferHandler to support DnD/copy-n-paste into the predicate list. */
@@ -398,18 +438,26 @@ public final class Main {
             @Override
             public void actionPerformed(ActionEvent e) {
                 try {
+                    boolean keepResults = m.askKeepRestoredResults();
+
                     // start search
                     HyperFindPredicate p = (HyperFindPredicate) codecs
                             .getSelectedItem();
                     final List<Filter> filters = new ArrayList<Filter>(
                             p.createFilters());
 
-                    // give the ResultExportTransferHandler a different
-                    // factory with just the codec, since it only needs the
-                    // decoded image and not the filter output attributes
+                    // give the ResultExportTransferHandler and the Download
+                    // button a different factory with just the codec, since
+                    // they only need the decoded image and not the filter
+                    // output attributes
+                    final SearchFactory codecFactory =
+                            m.createFactory(filters);
+                    final String codecSignature = m.getSignature(
+                            Collections.<HyperFindPredicate>emptyList());
                     resultsList.setTransferHandler(
-                            new ResultExportTransferHandler(
-                                    m.createFactory(filters), executor));
+                            new ResultExportTransferHandler(codecFactory,
+                                    codecSignature, m.objectCache, executor,
+                                    stats));
 
                     filters.addAll(model.createFilters());
                     SearchFactory factory = m.createFactory(filters);
@@ -418,25 +466,8 @@ public final class Main {
                             HyperFindSearchMonitorFactory
                                     .getInterestedSearchMonitors(m.cookies, filters);
 
-                    // push attributes
-                    Set<String> attributes = new HashSet<String>();
-                    attributes.add("thumbnail.jpeg"); // thumbnail
-                    attributes.add("_cols.int"); // original width
-                    attributes.add("_rows.int"); // original height
-                    attributes.add("Display-Name");
-                    attributes.add("hyperfind.thumbnail-display");
-
-                    for (HyperFindSearchMonitor m : monitors) {
-                        attributes.addAll(m.getPushAttributes());
-                    }
-
-                    // patches and heatmaps
-                    Set<String> filterNames = new HashSet<String>();
-                    for (Filter f : filters) {
-                        filterNames.add(f.getName());
-                    }
-                    attributes.addAll(ResultRegions.
-                            getPushAttributes(filterNames));
+                    Set<String> attributes = getPushAttributes(filters,
+                            monitors);
 
 
                     /*------------------------------*/
@@ -445,87 +476,16 @@ public final class Main {
                     ActionListener downloadButtonActionListener = new ActionListener() {
                         @Override
                         public void actionPerformed(ActionEvent e) {
-                            // XXX The code below is mostly copied from ResultExportTransferHandler
-
-//                            final Object[] values = resultsList.getSelectedValues();
-
                             // Choose folder to save
                             JFileChooser fc = new JFileChooser();
                             fc.setCurrentDirectory(new File(System.getProperty("user.dir")));
                             fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
                             int rv = fc.showSaveDialog(frame);
                             if (JFileChooser.APPROVE_OPTION == rv) {
-                                File folder = fc.getSelectedFile();
-
-                                // Loop through each marker
-                                int countFiles = 0;
-                                for (Marker marker : markerList) {
-                                    try {
-                                        // Retrieve result icons from marker's index set
-                                        HashSet<Object> values = new HashSet<Object>();
-                                        for (Integer ind : marker.selection) {
-                                            values.add(resultsList.getModel().getElementAt(ind));
-                                        }
-
-                                        final List<ResultIcon> results = new ArrayList<ResultIcon>();
-
-                                        for (Object o : values) {
-                                            ResultIcon r = (ResultIcon) o;
-                                            results.add(r);
-                                        }
-                                        // Launch job to retrieve files
-                                        final ArrayList<Future<File>> futureFiles = new ArrayList<Future<File>>();
-                                        for (final ResultIcon r : results) {
-                                            futureFiles.add(executor.submit(new Callable<File>() {
-                                                @Override
-                                                public File call() throws Exception {
-                                                    // System.out.println("running...");
-                                                    BufferedImage img = Util
-                                                            .extractImageFromResultIdentifier(r
-                                                                    .getResult().getResult()
-                                                                    .getObjectIdentifier(), m.createFactory(filters));
-                                                    // TODO We can optimize this out and directly store to local dir
-                                                    File f = File.createTempFile("hyperfind-export-",
-                                                            ".png");
-                                                    f.deleteOnExit();
-
-                                                    ImageIO.write(img, "png", f);
-
-                                                    // System.out.println("done");
-
-                                                    return f;
-                                                }
-                                            }));
-                                        }
-
-                                        // Create directory if necessary
-                                        Path destDir = Paths.get(folder.getPath(), "hyperfind-download", marker.name);
-                                        System.out.println("Creating directory " + destDir);
-                                        Files.createDirectories(destDir);
-
-                                        // Copy file from temp dir to dest dir
-                                        for (Future<File> future : futureFiles) {
-                                            File f = future.get();
-                                            Path p = Files.copy(f.toPath(), destDir.resolve(f.toPath().getFileName()));
-                                            System.out.println("Saving file " + p);
-                                            countFiles++;
-                                        }
-
-
-                                    } catch (InterruptedException e1) {
-                                        e1.printStackTrace();
-                                    } catch (ExecutionException e1) {
-                                        e1.printStackTrace();
-                                    } catch (IOException e1) {
-                                        e1.printStackTrace();
-                                        JOptionPane.showMessageDialog(frame, "Fail to save to directory " + folder);
-                                    }
-                                }
-                                JOptionPane.showMessageDialog(frame, "Done. " + countFiles + " files are saved under " + folder);
-
+                                m.download(fc.getSelectedFile(), resultsList,
+                                        new ResultExporter(codecFactory,
+                                                executor, EXPORT_IN_FLIGHT));
                             }
-
-
                         }
                     };
                     for (ActionListener l : downloadButton.getActionListeners()) {
@@ -542,8 +502,11 @@ public final class Main {
 
                     // start
                     m.results.start(m.search, new ActivePredicateSet(m,
-                                    model.getSelectedPredicates(), factory),
-                            monitors);
+                                    model.getSelectedPredicates(), factory,
+                                    m.getSignature(
+                                            model.getSelectedPredicates())),
+                            monitors, keepResults);
+                    m.rememberSearch(p, model.getSelectedPredicates());
                 } catch (IOException e1) {
                     Throwable e2 = e1.getCause();
                     stats.showException(e2 != null ? e2 : e1);
@@ -562,6 +525,169 @@ public final class Main {
             }
         });
 
+        /* Refine: reevaluate the current results instead of searching */
+        refineButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (m.results.getResults().isEmpty()) {
+                    JOptionPane.showMessageDialog(frame,
+                            "There are no results to refine.", "Refine",
+                            JOptionPane.INFORMATION_MESSAGE);
+                    return;
+                }
+                HyperFindPredicate p = (HyperFindPredicate) codecs
+                        .getSelectedItem();
+                List<HyperFindPredicate> selected =
+                        model.getSelectedPredicates();
+                if (!m.isNarrowing(p, selected)
+                        && JOptionPane.showConfirmDialog(frame,
+                        "The search is not strictly narrower than the one "
+                        + "that found these results, so refining may miss "
+                        + "objects a new search would find.\n"
+                        + "Refine the current results anyway?", "Refine",
+                        JOptionPane.YES_NO_OPTION)
+                        != JOptionPane.YES_OPTION) {
+                    return;
+                }
+                try {
+                    List<Filter> filters = new ArrayList<Filter>(
+                            p.createFilters());
+                    filters.addAll(model.createFilters());
+                    SearchFactory factory = m.createFactory(filters);
+                    String signature = m.getSignature(selected);
+                    List<String> filterNames = new ArrayList<String>();
+                    for (Filter f : filters) {
+                        filterNames.add(f.getName());
+                    }
+                    Set<String> attributes = getPushAttributes(filters,
+                            Collections.<HyperFindSearchMonitor>emptyList());
+
+                    m.cancelReexecutions();
+                    m.results.refine(new ActivePredicateSet(m, selected,
+                            factory, signature), new ResultReevaluator(
+                            factory, signature, filterNames, attributes,
+                            m.objectCache), new ThumbnailBox.RefineListener() {
+                        @Override
+                        public void refined(int[] newIndices) {
+                            // keep the marks on the results that remain
+                            for (Marker marker : markerList) {
+                                remapMarker(marker, newIndices);
+                            }
+                            markerInfo.setText("Images selected: "
+                                    + ((Marker) markerSelector
+                                    .getSelectedItem()).selection.size());
+                        }
+                    });
+                    m.rememberSearch(p, selected);
+                } catch (IOException e1) {
+                    stats.showException(e1);
+                    e1.printStackTrace();
+                }
+            }
+        });
+        // refining is possible whenever starting a search is
+        startButton.addPropertyChangeListener("enabled",
+                new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                refineButton.setEnabled(Boolean.TRUE.equals(
+                        evt.getNewValue()));
+            }
+        });
+
+        PipelineMetrics.getInstance().setObjectCache(m.objectCache);
+        PipelineMetrics.getInstance().register();
+        final JFrame diagnosticsFrame = new JFrame("HyperFind Diagnostics");
+        diagnosticsFrame.add(new DiagnosticsPanel(
+                PipelineMetrics.getInstance()));
+        diagnosticsFrame.pack();
+        diagnosticsButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                diagnosticsFrame.setLocationRelativeTo(frame);
+                diagnosticsFrame.setVisible(true);
+                diagnosticsFrame.toFront();
+            }
+        });
+
+        saveSessionButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fc = new JFileChooser();
+                fc.setFileFilter(SESSION_FILE_FILTER);
+                if (fc.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                File f = fc.getSelectedFile();
+                if (!f.getName().contains(".")) {
+                    f = new File(f.getPath() + "." + SESSION_EXTENSION);
+                }
+                final File file = f;
+                final SessionSnapshot snapshot = m.captureSession();
+                new SwingWorker<Object, Object>() {
+                    @Override
+                    protected Object doInBackground() throws IOException {
+                        snapshot.write(file);
+                        return null;
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            get();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        } catch (ExecutionException e) {
+                            e.getCause().printStackTrace();
+                            JOptionPane.showMessageDialog(frame,
+                                    "Could not save session: "
+                                    + e.getCause().getMessage());
+                        }
+                    }
+                }.execute();
+            }
+        });
+
+        loadSessionButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fc = new JFileChooser();
+                fc.setFileFilter(SESSION_FILE_FILTER);
+                if (fc.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                final File file = fc.getSelectedFile();
+                new SwingWorker<SessionSnapshot, Object>() {
+                    @Override
+                    protected SessionSnapshot doInBackground()
+                            throws IOException {
+                        return SessionSnapshot.read(file, m);
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            List<String> missing = m.restoreSession(get());
+                            // reapply the current marker to the new list
+                            markerSelector.setSelectedIndex(
+                                    markerSelector.getSelectedIndex());
+                            if (!missing.isEmpty()) {
+                                JOptionPane.showMessageDialog(frame,
+                                        "Could not restore: " + missing);
+                            }
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        } catch (ExecutionException e) {
+                            e.getCause().printStackTrace();
+                            JOptionPane.showMessageDialog(frame,
+                                    "Could not load session: "
+                                    + e.getCause().getMessage());
+                        }
+                    }
+                }.execute();
+            }
+        });
+
         defineScopeButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
@@ -643,7 +769,7 @@ public final class Main {
             public Component getListCellRendererComponent(JList list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
                 int ind = (Integer) value;
                 JLabel label = new JLabel();
-                ResultIcon thumbnail = (ResultIcon) resultsList.getModel().getElementAt(ind);
+                ResultIcon thumbnail = m.results.getResultIcon(ind);
                 label.setIcon(thumbnail.getIcon());
                 return label;
             }
@@ -654,7 +780,10 @@ public final class Main {
                 Object v = markerSelectedList.getSelectedValue();
 
                 if (null != v) {
-                    resultsList.ensureIndexIsVisible((Integer) v);
+                    int index = m.results.getViewIndex((Integer) v);
+                    if (index >= 0) {
+                        resultsList.ensureIndexIsVisible(index);
+                    }
                 }
             }
         });
@@ -665,33 +794,46 @@ public final class Main {
             public void actionPerformed(ActionEvent e) {
                 Marker marker = (Marker) markerSelector.getSelectedItem();
                 System.out.format("Marker %s selected.\n", marker);
-                int[] a = new int[marker.selection.size()];
-                int i = 0;
-                for (Integer ind : marker.selection) {
-                    a[i++] = ind;
-                }
-                resultsList.setSelectedIndices(a);
-                resultsList.setSelectionBackground(marker.color);
-                resultsList.repaint();
-
+                showMarker(marker, resultsList, m.results);
                 markerInfo.setText("Images selected: " + marker.selection.size());
             }
         });
         markerSelector.setSelectedIndex(0);
 
+        // the score view moved the marked results around
+        results.addViewListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                showMarker((Marker) markerSelector.getSelectedItem(),
+                        resultsList, m.results);
+            }
+        });
+
         resultsList.addListSelectionListener(new ListSelectionListener() {
             @Override
             public void valueChanged(ListSelectionEvent e) {
+                if (m.results.isChangingView()) {
+                    // list indices are stale; showMarker() follows
+                    return;
+                }
                 Marker marker = (Marker) markerSelector.getSelectedItem();
-                marker.selection.clear();
+                // marks on results hidden by the score view are kept
+                int count = m.results.getResults().size();
+                for (Iterator<Integer> it = marker.selection.iterator();
+                        it.hasNext();) {
+                    int ind = it.next();
+                    if (ind >= count || m.results.getViewIndex(ind) >= 0) {
+                        it.remove();
+                    }
+                }
                 for (int ind : resultsList.getSelectedIndices()) {
-                    marker.selection.add(ind);
+                    marker.selection.add(m.results.getResultIndex(ind));
                 }
                 markerInfo.setText("Images selected: " + marker.selection.size());
 
                 DefaultListModel markerSelectedListModel = (DefaultListModel) markerSelectedList.getModel();
                 markerSelectedListModel.clear();
-                for (int ind : resultsList.getSelectedIndices()) {
+                for (int ind : new TreeSet<Integer>(marker.selection)) {
                     markerSelectedListModel.addElement(Integer.valueOf(ind));
                 }
             }
@@ -732,14 +874,25 @@ public final class Main {
         Box v1 = Box.createVerticalBox();
         Box r2 = Box.createHorizontalBox();
         r2.add(defineScopeButton);
+        r2.add(Box.createHorizontalStrut(4));
+        r2.add(diagnosticsButton);
         v1.add(r2);
         v1.add(Box.createVerticalStrut(4));
 
+        Box r3 = Box.createHorizontalBox();
+        r3.add(saveSessionButton);
+        r3.add(Box.createHorizontalStrut(4));
+        r3.add(loadSessionButton);
+        v1.add(r3);
+        v1.add(Box.createVerticalStrut(4));
+
         Box r1 = Box.createHorizontalBox();
         r1.add(startButton);
         r1.add(Box.createHorizontalStrut(20));
         stopButton.setEnabled(false);
         r1.add(stopButton);
+        r1.add(Box.createHorizontalStrut(20));
+        r1.add(refineButton);
 
         v1.add(r1);
 
@@ -781,9 +934,12 @@ public final class Main {
             @Override
             public void windowClosed(WindowEvent e) {
                 m.stopSearch();
+                m.cancelReexecutions();
+                m.objectCache.clear();
                 // clear state from previous search
                 m.results.terminate();
                 m.popupFrame.dispose();
+                diagnosticsFrame.dispose();
                 for (HyperFindPredicate codec : codecList) {
                     codec.dispose();
                 }
@@ -850,9 +1006,9 @@ public final class Main {
         }
     }
 
-    private void popup(HyperFindResult r) {
-        popup(r.getResult().getName(), PopupPanel.createInstance(this,
-                r, examplePredicateFactories, model));
+    private void popup(HyperFindResult r, BufferedImage img) {
+        popup(r.getName(), PopupPanel.createInstance(this,
+                r, img, examplePredicateFactories, model));
     }
 
     private void popup(String title, PopupPanel p) {
@@ -871,69 +1027,484 @@ public final class Main {
     }
 
     /**
-     * Fetch the full fidelity (?) image and display it in the popup windows
+     * Export the objects of every marker into folder/hyperfind-download/,
+     * with a progress dialog that can cancel the export.
+     */
+    private void download(final File folder, JList resultsList,
+                          final ResultExporter exporter) {
+        // Retrieve results from each marker's index set
+        final Map<String, List<HyperFindResult>> byMarker =
+                new LinkedHashMap<String, List<HyperFindResult>>();
+        int total = 0;
+        List<HyperFindResult> all = results.getResults();
+        for (Marker marker : markerList) {
+            List<HyperFindResult> results = new ArrayList<HyperFindResult>();
+            for (Integer ind : marker.selection) {
+                if (ind < all.size()) {
+                    results.add(all.get(ind));
+                }
+            }
+            byMarker.put(marker.name, results);
+            total += results.size();
+        }
+
+        final ProgressMonitor monitor = new ProgressMonitor(frame,
+                "Downloading to " + folder, null, 0, total);
+        monitor.setMillisToDecideToPopup(0);
+        monitor.setMillisToPopup(0);
+        final Path root = Paths.get(folder.getPath(), "hyperfind-download");
+
+        // poll, since a slow fetch may not report progress for a while
+        final javax.swing.Timer cancelPoll = new javax.swing.Timer(250,
+                new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (monitor.isCanceled()) {
+                    exporter.cancel();
+                }
+            }
+        });
+        cancelPoll.start();
+
+        new SwingWorker<Integer, Object>() {
+            @Override
+            protected Integer doInBackground() throws Exception {
+                return exporter.export(byMarker, root,
+                        new ResultExporter.ProgressListener() {
+                    @Override
+                    public void progress(final int completed,
+                            final int failed, int total) {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                monitor.setNote(completed + " saved, "
+                                        + failed + " failed");
+                                monitor.setProgress(completed + failed);
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            protected void done() {
+                cancelPoll.stop();
+                monitor.close();
+                try {
+                    int count = get();
+                    JOptionPane.showMessageDialog(frame,
+                            (exporter.isCancelled() ? "Cancelled. " : "Done. ")
+                            + count + " files are saved under " + root);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    JOptionPane.showMessageDialog(frame,
+                            "Fail to save to directory " + root);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Capture the predicates, results and markers.  Call on the AWT thread.
+     */
+    SessionSnapshot captureSession() {
+        HyperFindPredicate codec = (HyperFindPredicate) codecs.getSelectedItem();
+        List<SessionSnapshot.PredicateState> predicates =
+                new ArrayList<SessionSnapshot.PredicateState>();
+        for (SelectablePredicate sp : model.getPredicates()) {
+            predicates.add(SessionSnapshot.PredicateState.capture(
+                    sp.getPredicate(), sp.isSelected()));
+        }
+        Map<String, Set<Integer>> markers =
+                new LinkedHashMap<String, Set<Integer>>();
+        for (Marker marker : markerList) {
+            markers.put(marker.name, new TreeSet<Integer>(marker.selection));
+        }
+        return new SessionSnapshot(
+                SessionSnapshot.PredicateState.capture(codec, true),
+                predicates, results.getResults(), markers);
+    }
+
+    /**
+     * Replace the codec, predicates, results and markers with those from a
+     * snapshot, and reload the scope.  Call on the AWT thread.  Returns the
+     * predicates whose bundles are not installed and could not be restored.
+     */
+    List<String> restoreSession(SessionSnapshot snapshot) {
+        stopSearch();
+        cancelReexecutions();
+        // restored results cannot be reevaluated
+        lastCodecSignature = null;
+        lastPredicateSignatures = null;
+        List<String> missing = new ArrayList<String>();
+
+        SessionSnapshot.PredicateState codecState = snapshot.codec;
+        boolean foundCodec = false;
+        for (int i = 0; i < codecs.getItemCount(); i++) {
+            HyperFindPredicate codec = (HyperFindPredicate) codecs.getItemAt(i);
+            if (codec.getPredicateName().equals(codecState.bundleName)) {
+                codecs.setSelectedIndex(i);
+                codec.restore(null, codecState.options,
+                        Collections.<BufferedImage>emptyList());
+                foundCodec = true;
+                break;
+            }
+        }
+        if (!foundCodec) {
+            missing.add(codecState.bundleName);
+        }
+
+        model.clear();
+        for (SessionSnapshot.PredicateState state : snapshot.predicates) {
+            HyperFindPredicateFactory factory = null;
+            for (HyperFindPredicateFactory f : predicateFactories) {
+                if (f.getType() == BundleType.PREDICATE
+                        && f.getDisplayName().equals(state.bundleName)) {
+                    factory = f;
+                    break;
+                }
+            }
+            if (factory == null) {
+                missing.add(state.bundleName);
+                continue;
+            }
+            try {
+                HyperFindPredicate p = factory.createHyperFindPredicate();
+                p.restore(state.instanceName, state.options,
+                        state.examples != null ? state.examples
+                                : Collections.<BufferedImage>emptyList());
+                model.addPredicate(p, state.selected);
+            } catch (IOException e) {
+                e.printStackTrace();
+                missing.add(state.bundleName);
+            }
+        }
+
+        try {
+            // the scope is whatever Define Scope would load now
+            cookies = CookieMap.createDefaultCookieMap();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        results.restore(snapshot.results);
+        restoredSession = !snapshot.results.isEmpty();
+        for (Marker marker : markerList) {
+            marker.selection.clear();
+            Set<Integer> indices = snapshot.markers.get(marker.name);
+            if (indices != null) {
+                marker.selection.addAll(indices);
+            }
+        }
+        return missing;
+    }
+
+    /*
+     * If the results were restored from a session, ask whether the next
+     * search should keep them and skip the objects they came from.
+     */
+    private boolean askKeepRestoredResults() {
+        if (!restoredSession) {
+            return false;
+        }
+        restoredSession = false;
+        int choice = JOptionPane.showConfirmDialog(frame,
+                "Keep the results restored from the session and search "
+                + "only for objects not seen yet?", "Resume Search",
+                JOptionPane.YES_NO_OPTION);
+        return choice == JOptionPane.YES_OPTION;
+    }
+
+    /**
+     * Fetch the full fidelity (?) image and display it in the popup windows.
+     * The fetch runs in the background; double-clicking an object that is
+     * already being fetched does not issue a second request, and opening a
+     * different object cancels fetches that have not completed yet.
      *
      * @param result
      */
     void reexecute(HyperFindResult result) {
-        ObjectIdentifier id = result.getResult().getObjectIdentifier();
-        ActivePredicateSet ps = result.getActivePredicateSet();
-        SearchFactory factory = ps.getSearchFactory();
-        Cursor oldCursor = frame.getCursor();
-        try {
-            frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-            Set<String> attributes = Collections.emptySet();
-            popup(new HyperFindResult(ps, factory.generateResult(id,
-                    attributes)));
-        } catch (IOException e1) {
-            e1.printStackTrace();
-        } finally {
-            frame.setCursor(oldCursor);
+        if (result.isRestored()) {
+            // there is no object to fetch; show the thumbnail instead
+            BufferedImage img = null;
+            byte[] thumb = result.getValue("thumbnail.jpeg");
+            if (thumb != null) {
+                try {
+                    img = ImageIO.read(new ByteArrayInputStream(thumb));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (img != null) {
+                popup(result.getName(), img);
+            }
+            return;
+        }
+
+        final ObjectIdentifier id = result.getObjectIdentifier();
+        if (reexecutions.containsKey(id)) {
+            return;
+        }
+        cancelReexecutions();
+
+        final ActivePredicateSet ps = result.getActivePredicateSet();
+        final SearchFactory factory = ps.getSearchFactory();
+        SwingWorker<HyperFindResult, Object> worker =
+                new SwingWorker<HyperFindResult, Object>() {
+            // decoded here rather than on the AWT thread
+            private volatile BufferedImage img;
+
+            @Override
+            protected HyperFindResult doInBackground() throws Exception {
+                Set<String> attributes = Collections.emptySet();
+                Result r = objectCache.getResult(factory, ps.getSignature(),
+                        id, attributes);
+                img = Util.extractImageFromResult(r);
+                HyperFindResult hr = new HyperFindResult(ps, r);
+                // decode the regions the popup draws
+                hr.getRegions().getPatches();
+                hr.getRegions().getHeatmaps();
+                return hr;
+            }
+
+            @Override
+            protected void done() {
+                // a cancelled fetch has already been removed, and its
+                // replacement may be in the map under the same id
+                if (reexecutions.get(id) != this) {
+                    return;
+                }
+                reexecutions.remove(id);
+                updateReexecuteCursor();
+                try {
+                    popup(get(), img);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        };
+        reexecutions.put(id, worker);
+        updateReexecuteCursor();
+        worker.execute();
+    }
+
+    // called on the AWT thread
+    private void cancelReexecutions() {
+        for (SwingWorker<HyperFindResult, Object> w : reexecutions.values()) {
+            w.cancel(true);
         }
+        reexecutions.clear();
+        updateReexecuteCursor();
+    }
+
+    private void updateReexecuteCursor() {
+        // only a hint: the window stays responsive while fetching
+        frame.setCursor(Cursor.getPredefinedCursor(reexecutions.isEmpty()
+                ? Cursor.DEFAULT_CURSOR : Cursor.WAIT_CURSOR));
     }
 
-    // returns null if object was dropped
-    private ResultRegions getRegions(HyperFindPredicate predicate,
-                                     ObjectIdentifier objectID, byte[] data) throws IOException {
-        // Create factory
+    /**
+     * Create a factory for testing predicate against single objects.  Call
+     * on the AWT thread, since the predicate's options are read from its
+     * editor.
+     */
+    SearchFactory createTestFactory(HyperFindPredicate predicate)
+            throws IOException {
         HyperFindPredicate p = (HyperFindPredicate) codecs.getSelectedItem();
         List<Filter> filters = new ArrayList<Filter>(p.createFilters());
         filters.addAll(predicate.createFilters());
-        SearchFactory factory = createFactory(filters);
+        return createFactory(filters);
+    }
+
+    // newIndices maps old result indices to new ones, or -1 if dropped
+    private static void remapMarker(Marker marker, int[] newIndices) {
+        Set<Integer> remapped = new HashSet<Integer>();
+        for (Integer ind : marker.selection) {
+            if (ind < newIndices.length && newIndices[ind] >= 0) {
+                remapped.add(newIndices[ind]);
+            }
+        }
+        marker.selection.clear();
+        marker.selection.addAll(remapped);
+    }
+
+    // select the shown results marked by marker; called on AWT thread
+    private static void showMarker(Marker marker, JList resultsList,
+            ThumbnailBox results) {
+        List<Integer> shown = new ArrayList<Integer>();
+        for (Integer ind : marker.selection) {
+            int index = results.getViewIndex(ind);
+            if (index >= 0) {
+                shown.add(index);
+            }
+        }
+        int[] a = new int[shown.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = shown.get(i);
+        }
+        resultsList.setSelectedIndices(a);
+        resultsList.setSelectionBackground(marker.color);
+        resultsList.repaint();
+    }
+
+    // scopes for testOnResults(); marker names select their marked results
+    static List<String> getTestScopes() {
+        List<String> scopes = new ArrayList<String>();
+        scopes.add(ALL_RESULTS);
+        for (Marker marker : markerList) {
+            scopes.add(marker.name);
+        }
+        return scopes;
+    }
+
+    /**
+     * Check the current results, or those of the marker named by scope,
+     * against predicate alone, showing the verdicts in the result list.
+     * Call on the AWT thread.
+     */
+    void testOnResults(HyperFindPredicate predicate, String scope) {
+        if (!results.isIdle()) {
+            JOptionPane.showMessageDialog(frame,
+                    "Wait for the current search to finish, or stop it.",
+                    "Test on Results", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        Collection<Integer> indices = null;
+        for (Marker marker : markerList) {
+            if (marker.name.equals(scope)) {
+                indices = new HashSet<Integer>(marker.selection);
+            }
+        }
+        if (results.getResults().isEmpty()
+                || (indices != null && indices.isEmpty())) {
+            JOptionPane.showMessageDialog(frame,
+                    "There are no results to test.", "Test on Results",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        try {
+            HyperFindPredicate codec =
+                    (HyperFindPredicate) codecs.getSelectedItem();
+            List<Filter> filters = new ArrayList<Filter>(
+                    codec.createFilters());
+            filters.addAll(predicate.createFilters());
+            SearchFactory factory = createFactory(filters);
+            List<String> filterNames = new ArrayList<String>();
+            for (Filter f : filters) {
+                filterNames.add(f.getName());
+            }
+            cancelReexecutions();
+            results.testPredicate(predicate.getInstanceName(), indices,
+                    predicate.getFilterNames(), new ResultReevaluator(
+                    factory,
+                    getSignature(Collections.singletonList(predicate)),
+                    filterNames, ResultRegions.getPushAttributes(
+                    predicate.getFilterNames()), objectCache));
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(frame, e.getMessage(),
+                    "Test on Results", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // attributes pushed with every result
+    private static Set<String> getPushAttributes(List<Filter> filters,
+            List<HyperFindSearchMonitor> monitors) {
+        Set<String> attributes = new HashSet<String>();
+        attributes.add("thumbnail.jpeg"); // thumbnail
+        attributes.add("_cols.int"); // original width
+        attributes.add("_rows.int"); // original height
+        attributes.add("Display-Name");
+        attributes.add("hyperfind.thumbnail-display");
+        attributes.add("_ObjectID"); // export manifest key
+
+        for (HyperFindSearchMonitor m : monitors) {
+            attributes.addAll(m.getPushAttributes());
+        }
+
+        // patches and heatmaps
+        Set<String> filterNames = new HashSet<String>();
+        for (Filter f : filters) {
+            filterNames.add(f.getName());
+        }
+        attributes.addAll(ResultRegions.getPushAttributes(filterNames));
+        // for thresholding and sorting in the list
+        attributes.addAll(ScoreIndex.getPushAttributes(filterNames));
+        return attributes;
+    }
 
+    // call on the AWT thread, once the search or refinement has started
+    private void rememberSearch(HyperFindPredicate codec,
+            List<HyperFindPredicate> predicates) {
+        lastCodecSignature = codec.getSignature();
+        lastPredicateSignatures = new HashSet<String>();
+        for (HyperFindPredicate p : predicates) {
+            lastPredicateSignatures.add(p.getSignature());
+        }
+    }
+
+    /*
+     * True if every object that would pass codec and predicates also
+     * passed the search that found the current results: the codec is
+     * unchanged, and every predicate of that search is still there with
+     * the same options.  Option changes cannot be judged, since we do not
+     * know which direction narrows a given option.
+     */
+    private boolean isNarrowing(HyperFindPredicate codec,
+            List<HyperFindPredicate> predicates) {
+        if (lastPredicateSignatures == null
+                || !codec.getSignature().equals(lastCodecSignature)) {
+            return false;
+        }
+        Set<String> signatures = new HashSet<String>();
+        for (HyperFindPredicate p : predicates) {
+            signatures.add(p.getSignature());
+        }
+        return signatures.containsAll(lastPredicateSignatures);
+    }
+
+    /**
+     * Identify the filters created by the current codec plus predicates,
+     * for keying the object cache.  Call on the AWT thread.
+     */
+    String getSignature(List<HyperFindPredicate> predicates) {
+        HyperFindPredicate p = (HyperFindPredicate) codecs.getSelectedItem();
+        StringBuilder sb = new StringBuilder(p.getSignature());
+        for (HyperFindPredicate predicate : predicates) {
+            sb.append('\n').append(predicate.getSignature());
+        }
+        return sb.toString();
+    }
+
+    // returns null if object was dropped; may be called on any thread
+    ResultRegions getRegions(SearchFactory factory, String signature,
+                             List<String> filterNames,
+                             ObjectIdentifier objectID, byte[] data) throws IOException {
         // Set push attributes for patches and heatmaps
-        List<String> filterNames = predicate.getFilterNames();
         Set<String> attributes = ResultRegions.getPushAttributes(filterNames);
 
         // Generate result
         Result r;
         if (objectID != null) {
-            r = factory.generateResult(objectID, attributes);
+            r = objectCache.getResult(factory, signature, objectID,
+                    attributes);
         } else {
             r = factory.generateResult(data, attributes);
         }
 
         // Check if object was dropped
-        for (String fName : filterNames) {
-            if (r.getValue("_filter." + fName + "_score") == null) {
-                return null;
-            }
+        if (!ResultReevaluator.passed(r, filterNames)) {
+            return null;
         }
 
         // We're safe
         return new ResultRegions(filterNames, r);
     }
 
-    ResultRegions getRegions(HyperFindPredicate predicate,
-                             ObjectIdentifier objectID) throws IOException {
-        return getRegions(predicate, objectID, null);
-    }
-
-    ResultRegions getRegions(HyperFindPredicate predicate, byte[] data)
-            throws IOException {
-        return getRegions(predicate, null, data);
-    }
-
     private SearchFactory createFactory(List<Filter> filters) {
         return new SearchFactory(filters, cookies);
     }
@@ -952,7 +1523,7 @@ public final class Main {
                 + " bundle-directories filter-directories");
     }
 
-    private static List<File> splitDirs(String paths) {
+    static List<File> splitDirs(String paths) {
         List<File> dirs = new ArrayList<File>();
         for (String path : paths.split(":")) {
             File dir = new File(path);
@@ -964,8 +1535,13 @@ public final class Main {
     }
 
     public static void main(String[] args) throws IOException {
+        if (Arrays.asList(args).contains("--batch")) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(BatchSearch.run(args));
+        }
         if (args.length != 2) {
             printUsage();
+            BatchSearch.printUsage();
             System.exit(1);
         }
 
@@ -0,0 +1,284 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cmu.cs.diamond.hyperfind.HyperFindSearchMonitor.OverflowPolicy;
+import edu.cmu.cs.diamond.hyperfind.PipelineMetrics.Histogram;
+
+/**
+ * Delivers the results of one search to the search monitors.  Each monitor
+ * has a bounded queue drained by a thread of its own, so a slow monitor
+ * only holds up the result stream if its overflow policy is BLOCK, and
+ * never holds up the other monitors.  Queued results are handed over in
+ * batches through {@link HyperFindSearchMonitor#notify(List)}.
+ */
+final class MonitorDispatcher {
+
+    interface Callback {
+        // every monitor is done with hr, or has dropped it
+        void delivered(HyperFindResult hr);
+    }
+
+    private static final int QUEUE_SIZE = Math.max(1, Integer.getInteger(
+            "hyperfind.monitor-queue", 256));
+
+    private static final int SAMPLE_INTERVAL = Math.max(1,
+            Integer.getInteger("hyperfind.monitor-sample-interval", 10));
+
+    private static final int MAX_BATCH = 64;
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hyperfind-monitor");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // queued after the last result
+    private static final Object END = new Object();
+
+    // a result on its way to every monitor
+    private static final class Delivery {
+        private final HyperFindResult result;
+
+        private final AtomicInteger remaining;
+
+        private Delivery(HyperFindResult result, int monitors) {
+            this.result = result;
+            this.remaining = new AtomicInteger(monitors);
+        }
+    }
+
+    private final class Channel implements Runnable {
+        private final HyperFindSearchMonitor monitor;
+
+        private final OverflowPolicy policy;
+
+        private final String name;
+
+        // Deliveries, then END
+        private final BlockingQueue<Object> queue =
+                new LinkedBlockingQueue<Object>();
+
+        // room for Deliveries in the queue
+        private final Semaphore space = new Semaphore(QUEUE_SIZE);
+
+        private final Histogram latency;
+
+        // results that found the queue full; touched by the publisher only
+        private long overflows;
+
+        // set if the monitor thread has quit early
+        private volatile boolean dead;
+
+        private Channel(HyperFindSearchMonitor monitor) {
+            this.monitor = monitor;
+            this.policy = monitor.getOverflowPolicy();
+            this.name = monitor.getClass().getSimpleName();
+            this.latency = METRICS.getMonitorHistogram(name);
+        }
+
+        private void offer(Delivery d) throws InterruptedException {
+            if (dead) {
+                done(d, true);
+                return;
+            }
+            if (space.tryAcquire()) {
+                queue.add(d);
+                return;
+            }
+            switch (policy) {
+            case BLOCK:
+                space.acquire();
+                queue.add(d);
+                return;
+            case SAMPLE:
+                if (++overflows % SAMPLE_INTERVAL == 0) {
+                    // take over the slot of the oldest queued result
+                    Object old = queue.poll();
+                    if (old instanceof Delivery) {
+                        queue.add(d);
+                        done((Delivery) old, true);
+                        return;
+                    } else if (old == END) {
+                        // closed under us
+                        queue.add(END);
+                    } else if (space.tryAcquire()) {
+                        queue.add(d);
+                        return;
+                    }
+                }
+                done(d, true);
+                return;
+            default:
+                done(d, true);
+            }
+        }
+
+        private void close() {
+            queue.add(END);
+        }
+
+        @Override
+        public void run() {
+            List<Object> batch = new ArrayList<Object>(MAX_BATCH);
+            List<HyperFindResult> results =
+                    new ArrayList<HyperFindResult>(MAX_BATCH);
+            try {
+                boolean end = false;
+                while (!end) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Object o : batch) {
+                        if (o == END) {
+                            end = true;
+                        } else {
+                            results.add(((Delivery) o).result);
+                        }
+                    }
+                    space.release(results.size());
+
+                    if (!results.isEmpty()) {
+                        long start = System.nanoTime();
+                        try {
+                            monitor.notify(results);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                        long perResult = (System.nanoTime() - start)
+                                / results.size();
+                        for (int i = 0; i < results.size(); i++) {
+                            latency.record(perResult);
+                        }
+                    }
+                    for (Object o : batch) {
+                        if (o != END) {
+                            done((Delivery) o, false);
+                        }
+                    }
+                    batch.clear();
+                    results.clear();
+                }
+                monitor.stopped();
+            } catch (InterruptedException e) {
+                // the monitor gave up; stop queueing for it and let
+                // everything it has not seen go
+                dead = true;
+                space.release(QUEUE_SIZE);
+                for (Object o : batch) {
+                    if (o != END) {
+                        done((Delivery) o, true);
+                    }
+                }
+                Object o;
+                while ((o = queue.poll()) != null) {
+                    if (o != END) {
+                        done((Delivery) o, true);
+                    }
+                }
+            }
+        }
+
+        private void done(Delivery d, boolean dropped) {
+            if (dropped) {
+                METRICS.recordMonitorDropped(name);
+            }
+            if (d.remaining.decrementAndGet() == 0) {
+                callback.delivered(d.result);
+            }
+        }
+    }
+
+    private static final PipelineMetrics METRICS =
+            PipelineMetrics.getInstance();
+
+    private final List<Channel> channels = new ArrayList<Channel>();
+
+    private final Callback callback;
+
+    MonitorDispatcher(List<HyperFindSearchMonitor> monitors,
+            Callback callback) {
+        this.callback = callback;
+        for (HyperFindSearchMonitor m : monitors) {
+            Channel c = new Channel(m);
+            channels.add(c);
+            EXECUTOR.execute(c);
+        }
+    }
+
+    /*
+     * Queue hr for every monitor.  Called from one thread at a time;
+     * blocks only for monitors with the BLOCK policy.
+     */
+    void dispatch(HyperFindResult hr) throws InterruptedException {
+        if (channels.isEmpty()) {
+            callback.delivered(hr);
+            return;
+        }
+        Delivery d = new Delivery(hr, channels.size());
+        for (Channel c : channels) {
+            c.offer(d);
+        }
+    }
+
+    /*
+     * No more results.  Each monitor gets stopped() once it has been
+     * notified of everything already queued.
+     */
+    void close() {
+        for (Channel c : channels) {
+            c.close();
+        }
+    }
+}
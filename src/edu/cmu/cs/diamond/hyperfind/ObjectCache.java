@@ -0,0 +1,365 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.imageio.ImageIO;
+
+import edu.cmu.cs.diamond.opendiamond.ObjectIdentifier;
+import edu.cmu.cs.diamond.opendiamond.Result;
+import edu.cmu.cs.diamond.opendiamond.SearchFactory;
+import edu.cmu.cs.diamond.opendiamond.Util;
+
+/**
+ * Shared cache of full-resolution objects fetched from the servers, so
+ * that reexecution, predicate testing and drag-and-drop export do not
+ * fetch the same object over and over.  Its counters are shown through
+ * {@link PipelineMetrics}.  Entries are keyed by object, the signature of
+ * the filters that produced them (see {@link Main#getSignature(List)}) and
+ * the requested attributes.
+ * <p>
+ * Both decoded images and results are held in memory under a common byte
+ * budget.  If a spill directory is configured, decoded images evicted from
+ * memory are written there as PNG and read back on the next request;
+ * results are opaque and are only cached in memory.
+ */
+final class ObjectCache {
+
+    private static final class Key {
+        private final ObjectIdentifier id;
+
+        private final String signature;
+
+        // null for decoded images
+        private final Set<String> attributes;
+
+        Key(ObjectIdentifier id, String signature, Set<String> attributes) {
+            this.id = id;
+            this.signature = signature;
+            this.attributes = attributes == null ? null
+                    : Collections.unmodifiableSet(
+                    new TreeSet<String>(attributes));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = id.hashCode() * 31 + signature.hashCode();
+            return h * 31 + (attributes == null ? 0 : attributes.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                Key k = (Key) obj;
+                return id.equals(k.id) && signature.equals(k.signature)
+                        && (attributes == null ? k.attributes == null
+                        : attributes.equals(k.attributes));
+            }
+            return false;
+        }
+    }
+
+    private final long maxBytes;
+
+    private final File spillDir;
+
+    private final long maxSpillBytes;
+
+    // access-ordered, so iteration starts at the least recently used entry;
+    // values are Results or BufferedImages
+    private final LinkedHashMap<Key, Object> memory =
+            new LinkedHashMap<Key, Object>(16, 0.75f, true);
+
+    private final LinkedHashMap<Key, File> spilled =
+            new LinkedHashMap<Key, File>(16, 0.75f, true);
+
+    private long bytes;
+
+    private long spillBytes;
+
+    private long hits;
+
+    private long spillHits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long spillEvictions;
+
+    /*
+     * spillDir may be null to disable the on-disk tier.
+     */
+    public ObjectCache(long maxBytes, File spillDir, long maxSpillBytes) {
+        this.maxBytes = maxBytes;
+        this.spillDir = spillDir;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    /*
+     * Configured by the hyperfind.object-cache-mb, hyperfind.cache-dir and
+     * hyperfind.cache-dir-mb system properties.
+     */
+    public static ObjectCache createDefault() {
+        long mb = Long.getLong("hyperfind.object-cache-mb", 256);
+        long spillMb = Long.getLong("hyperfind.cache-dir-mb", 1024);
+        String dir = System.getProperty("hyperfind.cache-dir");
+        File spillDir = null;
+        if (dir != null) {
+            spillDir = new File(dir);
+            if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+                System.err.println("Cannot create cache directory " + dir);
+                spillDir = null;
+            }
+        }
+        return new ObjectCache(mb << 20, spillDir, spillMb << 20);
+    }
+
+    /*
+     * Like factory.generateResult(id, attributes).  Call on any thread.
+     */
+    public Result getResult(SearchFactory factory, String signature,
+            ObjectIdentifier id, Set<String> attributes) throws IOException {
+        Key key = new Key(id, signature, attributes);
+        synchronized (this) {
+            Object o = memory.get(key);
+            if (o != null) {
+                hits++;
+                return (Result) o;
+            }
+            misses++;
+        }
+
+        Result r = factory.generateResult(id, attributes);
+        put(key, r, sizeOf(r));
+        return r;
+    }
+
+    /*
+     * Like Util.extractImageFromResultIdentifier(id, factory).  Call on any
+     * thread.
+     */
+    public BufferedImage getImage(SearchFactory factory, String signature,
+            ObjectIdentifier id) throws IOException {
+        Key key = new Key(id, signature, null);
+        File f;
+        synchronized (this) {
+            Object o = memory.get(key);
+            if (o != null) {
+                hits++;
+                return (BufferedImage) o;
+            }
+            f = spilled.get(key);
+            if (f == null) {
+                misses++;
+            }
+        }
+
+        BufferedImage img = null;
+        if (f != null) {
+            img = readSpilled(key, f);
+        }
+        if (img == null) {
+            img = Util.extractImageFromResultIdentifier(id, factory);
+        }
+        put(key, img, sizeOf(img));
+        return img;
+    }
+
+    public synchronized void clear() {
+        memory.clear();
+        bytes = 0;
+        for (File f : spilled.values()) {
+            f.delete();
+        }
+        spilled.clear();
+        spillBytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getSpillBytes() {
+        return spillBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getSpillHits() {
+        return spillHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getSpillEvictions() {
+        return spillEvictions;
+    }
+
+    private BufferedImage readSpilled(Key key, File f) {
+        BufferedImage img = null;
+        try {
+            img = ImageIO.read(f);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            if (img != null) {
+                spillHits++;
+            } else {
+                // unreadable; count it as a miss and refetch
+                misses++;
+                if (spilled.get(key) == f) {
+                    spilled.remove(key);
+                    spillBytes -= f.length();
+                    f.delete();
+                }
+            }
+        }
+        return img;
+    }
+
+    private void put(Key key, Object value, long size) {
+        List<Map.Entry<Key, Object>> evicted =
+                new ArrayList<Map.Entry<Key, Object>>();
+        synchronized (this) {
+            Object old = memory.put(key, value);
+            if (old != null) {
+                bytes -= sizeOf(old);
+            }
+            bytes += size;
+
+            // always keep the most recent entry, even if it is over budget
+            Iterator<Map.Entry<Key, Object>> it =
+                    memory.entrySet().iterator();
+            while (bytes > maxBytes && memory.size() > 1) {
+                Map.Entry<Key, Object> e = it.next();
+                bytes -= sizeOf(e.getValue());
+                evictions++;
+                evicted.add(e);
+                it.remove();
+            }
+        }
+
+        // encode outside the lock
+        if (spillDir != null) {
+            for (Map.Entry<Key, Object> e : evicted) {
+                if (e.getValue() instanceof BufferedImage) {
+                    spill(e.getKey(), (BufferedImage) e.getValue());
+                }
+            }
+        }
+    }
+
+    private void spill(Key key, BufferedImage img) {
+        synchronized (this) {
+            if (spilled.containsKey(key)) {
+                return;
+            }
+        }
+
+        File f;
+        try {
+            f = File.createTempFile("object-", ".png", spillDir);
+            f.deleteOnExit();
+            ImageIO.write(img, "png", f);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        List<File> stale = new ArrayList<File>();
+        synchronized (this) {
+            File old = spilled.put(key, f);
+            if (old != null) {
+                spillBytes -= old.length();
+                stale.add(old);
+            }
+            spillBytes += f.length();
+
+            Iterator<File> it = spilled.values().iterator();
+            while (spillBytes > maxSpillBytes && spilled.size() > 0) {
+                File victim = it.next();
+                spillBytes -= victim.length();
+                spillEvictions++;
+                stale.add(victim);
+                it.remove();
+            }
+        }
+        for (File victim : stale) {
+            victim.delete();
+        }
+    }
+
+    private static long sizeOf(Object o) {
+        if (o instanceof BufferedImage) {
+            BufferedImage img = (BufferedImage) o;
+            long pixelBits = img.getColorModel().getPixelSize();
+            return (long) img.getWidth() * img.getHeight() * pixelBits / 8;
+        }
+
+        Result r = (Result) o;
+        long size = 0;
+        for (String k : r.getKeys()) {
+            byte[] v = r.getValue(k);
+            size += k.length() + (v != null ? v.length : 0);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import edu.cmu.cs.diamond.hyperfind.ServerRateEstimator.ServerRate;
+
+/**
+ * Timings of the client side of the search pipeline, from waiting on the
+ * network for the next result to the result showing up in the list, plus
+ * the smoothed rate at which each server is searching objects and the
+ * ObjectCache counters.  Shown by
+ * DiagnosticsPanel, exported over JMX, and printed to stderr every
+ * hyperfind.metrics-log-seconds seconds if that is set.
+ */
+final class PipelineMetrics implements PipelineMetricsMXBean {
+
+    enum Stage {
+        FETCH("Network wait"),
+        DECODE("Thumbnail decode"),
+        HEATMAP("Heatmap compositing"),
+        PUBLISH("Display latency"),
+        NOTIFY("Monitor dispatch");
+
+        private final String description;
+
+        private Stage(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    /*
+     * Latency histogram with power-of-two buckets: bucket i counts times
+     * in [2^i, 2^(i+1)) microseconds, so percentiles are accurate to
+     * within a factor of two.  Lock-free, since it is updated from the
+     * decode threads.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(nanos / 1000, 1);
+            int bucket = Math.min(63 - Long.numberOfLeadingZeros(micros),
+                    BUCKETS - 1);
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get())) {
+                if (maxNanos.compareAndSet(max, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        // upper bound of the bucket holding the q-th quantile
+        double getPercentileMillis(double q) {
+            long n = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                n += snapshot[i];
+            }
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min((1L << (i + 1)) / 1000.0,
+                            getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+    }
+
+    private static final String OBJECT_NAME =
+            "edu.cmu.cs.diamond.hyperfind:type=PipelineMetrics";
+
+    private static final int LOG_SECONDS = Integer.getInteger(
+            "hyperfind.metrics-log-seconds", 0);
+
+    private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+    private final Map<Stage, Histogram> histograms =
+            new EnumMap<Stage, Histogram>(Stage.class);
+
+    // server -> smoothed objects per second
+    private final Map<String, Double> serverRates =
+            new LinkedHashMap<String, Double>();
+
+    // monitor class -> notify time per result
+    private final Map<String, Histogram> monitorHistograms =
+            new LinkedHashMap<String, Histogram>();
+
+    // monitor class -> results dropped by its overflow policy
+    private final Map<String, AtomicLong> monitorDropped =
+            new LinkedHashMap<String, AtomicLong>();
+
+    // batches flushed to the result list, and the results in them
+    private final AtomicLong listUpdates = new AtomicLong();
+
+    private final AtomicLong listResults = new AtomicLong();
+
+    private ObjectCache objectCache;
+
+    private boolean registered;
+
+    private PipelineMetrics() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+    }
+
+    static PipelineMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    void record(Stage stage, long nanos) {
+        histograms.get(stage).record(nanos);
+    }
+
+    Histogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    // kept across searches, so the caller may hold on to it
+    synchronized Histogram getMonitorHistogram(String monitor) {
+        Histogram h = monitorHistograms.get(monitor);
+        if (h == null) {
+            h = new Histogram();
+            monitorHistograms.put(monitor, h);
+        }
+        return h;
+    }
+
+    synchronized Map<String, Histogram> getMonitorHistograms() {
+        return new LinkedHashMap<String, Histogram>(monitorHistograms);
+    }
+
+    synchronized void recordMonitorDropped(String monitor) {
+        AtomicLong count = monitorDropped.get(monitor);
+        if (count == null) {
+            count = new AtomicLong();
+            monitorDropped.put(monitor, count);
+        }
+        count.incrementAndGet();
+    }
+
+    // called on the AWT thread for each batch shown by a ResultListModel
+    void recordListUpdate(int results) {
+        listUpdates.incrementAndGet();
+        listResults.addAndGet(results);
+    }
+
+    // called with each poll of the server statistics
+    synchronized void updateServers(List<ServerRate> rates) {
+        serverRates.clear();
+        for (ServerRate r : rates) {
+            serverRates.put(r.getServer(), r.getRate());
+        }
+    }
+
+    synchronized void setObjectCache(ObjectCache cache) {
+        objectCache = cache;
+    }
+
+    /*
+     * Register the MBean and start the log, once.  Failure to register is
+     * not fatal; the diagnostics panel still works.
+     */
+    synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        if (LOG_SECONDS > 0) {
+            ScheduledExecutorService logger =
+                    Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "hyperfind-metrics");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            logger.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    System.err.println(getSummary());
+                }
+            }, LOG_SECONDS, LOG_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (Stage stage : Stage.values()) {
+            m.put(stage.name(), histograms.get(stage).getCount());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMillis() {
+        Map<String, Double> m = new LinkedHashMap<String, Double>();
+        for (Stage stage : Stage.values()) {
+            m.put(stage.name(), histograms.get(stage).getMeanMillis());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getMedianMillis() {
+        return getPercentileMillis(0.5);
+    }
+
+    @Override
+    public Map<String, Double> getP95Millis() {
+        return getPercentileMillis(0.95);
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        Map<String, Double> m = new LinkedHashMap<String, Double>();
+        for (Stage stage : Stage.values()) {
+            m.put(stage.name(), histograms.get(stage).getMaxMillis());
+        }
+        return m;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getMonitorP95Millis() {
+        Map<String, Double> m = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Histogram> e : monitorHistograms.entrySet()) {
+            m.put(e.getKey(), e.getValue().getPercentileMillis(0.95));
+        }
+        return m;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getMonitorDropped() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : monitorDropped.entrySet()) {
+            m.put(e.getKey(), e.getValue().get());
+        }
+        return m;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getServerObjectsPerSecond() {
+        return Collections.unmodifiableMap(
+                new LinkedHashMap<String, Double>(serverRates));
+    }
+
+    @Override
+    public Map<String, Long> getListCounts() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        m.put("updates", listUpdates.get());
+        m.put("results", listResults.get());
+        return m;
+    }
+
+    // empty if no cache has been set
+    @Override
+    public Map<String, Long> getObjectCacheCounts() {
+        ObjectCache cache;
+        synchronized (this) {
+            cache = objectCache;
+        }
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        if (cache != null) {
+            m.put("hits", cache.getHits());
+            m.put("misses", cache.getMisses());
+            m.put("evictions", cache.getEvictions());
+            m.put("bytes", cache.getBytes());
+            m.put("spillHits", cache.getSpillHits());
+            m.put("spillEvictions", cache.getSpillEvictions());
+            m.put("spillBytes", cache.getSpillBytes());
+        }
+        return m;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder("hyperfind:");
+        for (Stage stage : Stage.values()) {
+            Histogram h = histograms.get(stage);
+            sb.append(String.format(" %s n=%d mean=%.1fms p95=%.1fms"
+                    + " max=%.1fms;", stage.name().toLowerCase(),
+                    h.getCount(), h.getMeanMillis(),
+                    h.getPercentileMillis(0.95), h.getMaxMillis()));
+        }
+        for (Map.Entry<String, Histogram> e :
+                getMonitorHistograms().entrySet()) {
+            Histogram h = e.getValue();
+            sb.append(String.format(" monitor %s n=%d p95=%.1fms;",
+                    e.getKey(), h.getCount(), h.getPercentileMillis(0.95)));
+        }
+        for (Map.Entry<String, Double> e :
+                getServerObjectsPerSecond().entrySet()) {
+            sb.append(String.format(" %s=%.1f/s", e.getKey(), e.getValue()));
+        }
+        sb.append(String.format(" list updates=%d results=%d;",
+                listUpdates.get(), listResults.get()));
+        Map<String, Long> cache = getObjectCacheCounts();
+        if (!cache.isEmpty()) {
+            sb.append(" cache");
+            for (Map.Entry<String, Long> e : cache.entrySet()) {
+                sb.append(' ').append(e.getKey()).append('=')
+                        .append(e.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    // called when a search starts
+    @Override
+    public synchronized void reset() {
+        for (Histogram h : histograms.values()) {
+            h.reset();
+        }
+        for (Histogram h : monitorHistograms.values()) {
+            h.reset();
+        }
+        monitorDropped.clear();
+        serverRates.clear();
+        listUpdates.set(0);
+        listResults.set(0);
+    }
+
+    private Map<String, Double> getPercentileMillis(double q) {
+        Map<String, Double> m = new LinkedHashMap<String, Double>();
+        for (Stage stage : Stage.values()) {
+            m.put(stage.name(),
+                    histograms.get(stage).getPercentileMillis(q));
+        }
+        return m;
+    }
+}
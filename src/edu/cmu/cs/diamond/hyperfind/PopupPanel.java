@@ -49,6 +49,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.imageio.ImageIO;
 
@@ -61,7 +62,7 @@ import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableModel;
 
 import edu.cmu.cs.diamond.opendiamond.ObjectIdentifier;
-import edu.cmu.cs.diamond.opendiamond.Result;
+import edu.cmu.cs.diamond.opendiamond.SearchFactory;
 import edu.cmu.cs.diamond.opendiamond.Util;
 
 public class PopupPanel extends JPanel {
@@ -116,21 +117,24 @@ public class PopupPanel extends JPanel {
         }
     }
 
+    /*
+     * img is the decoded object data, which is expensive to decode, so
+     * the caller does it off the AWT thread.
+     */
     public static PopupPanel createInstance(Main m, HyperFindResult hr,
+            BufferedImage img,
             List<HyperFindPredicateFactory> examplePredicateFactories,
             PredicateListModel model) {
 
-        Result r = hr.getResult();
-        BufferedImage img = Util.extractImageFromResult(r);
-
         Map<String, byte[]> attributes = new HashMap<String, byte[]>();
-        for (String k : r.getKeys()) {
+        for (String k : hr.getKeys()) {
             // skip "data" attribute
             if (!k.equals("")) {
-                attributes.put(k, r.getValue(k));
+                attributes.put(k, hr.getValue(k));
             }
         }
-        return createInstance(m, r.getObjectIdentifier(), img, r.getData(),
+        return createInstance(m, hr.getObjectIdentifier(), img,
+                hr.getValue(""),
                 hr.getActivePredicateSet().getActivePredicates(),
                 examplePredicateFactories, hr.getRegions(), attributes, model);
     }
@@ -218,7 +222,7 @@ public class PopupPanel extends JPanel {
             leftSide.add(new RegionsListPanel(activePredicates, regions,
                     image));
             leftSide.add(new TestPredicatePanel(m, predicateListModel, image,
-                    objectID, img, p));
+                    objectID, img));
             leftSide.add(new ExampleSearchPanel(predicateListModel, image,
                     img, examplePredicateFactories));
             hBox.add(leftSide);
@@ -562,6 +566,9 @@ public class PopupPanel extends JPanel {
     }
 
     private static class TestPredicatePanel extends JPanel {
+        // wait for option changes to settle before testing
+        private static final int DEBOUNCE_DELAY = 300;
+
         private final Main m;
 
         private final ImageRegionsLabel image;
@@ -570,22 +577,28 @@ public class PopupPanel extends JPanel {
 
         private final BufferedImage img;
 
-        private final PopupPanel pp;
-
         private final JLabel label;
 
+        private final JProgressBar progress;
+
+        private final javax.swing.Timer debounceTimer;
+
         private HyperFindPredicate selected;
 
+        // the current test; results of superseded tests are ignored
+        private SwingWorker<ResultRegions, Object> worker;
+
+        private byte[] encodedImage;
+
         public TestPredicatePanel(Main m, PredicateListModel model,
                 ImageRegionsLabel image, ObjectIdentifier objectID,
-                BufferedImage img, PopupPanel pp) {
+                BufferedImage img) {
             setBorder(BorderFactory.createTitledBorder("Test Predicate"));
 
             this.m = m;
             this.image = image;
             this.objectID = objectID;
             this.img = img;
-            this.pp = pp;
 
             Box vBox = Box.createVerticalBox();
             add(vBox);
@@ -608,10 +621,19 @@ public class PopupPanel extends JPanel {
                 }
             });
 
+            debounceTimer = new javax.swing.Timer(DEBOUNCE_DELAY,
+                    new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    updateResult();
+                }
+            });
+            debounceTimer.setRepeats(false);
+
             final ChangeListener listener = new ChangeListener() {
                 @Override
                 public void stateChanged(ChangeEvent e) {
-                    updateResult();
+                    debounceTimer.restart();
                 }
             };
             c.addActionListener(new ActionListener() {
@@ -630,6 +652,7 @@ public class PopupPanel extends JPanel {
                         selected = sp.getPredicate();
                         selected.addChangeListener(listener);
                     }
+                    debounceTimer.stop();
                     updateResult();
                 }
             });
@@ -637,9 +660,13 @@ public class PopupPanel extends JPanel {
                 @Override
                 public void hierarchyChanged(HierarchyEvent e) {
                     if ((e.getChangeFlags() & e.DISPLAYABILITY_CHANGED) != 0 &&
-                            !c.isDisplayable() && selected != null) {
-                        // System.out.println("removing change listener");
-                        selected.removeChangeListener(listener);
+                            !c.isDisplayable()) {
+                        debounceTimer.stop();
+                        cancelTest();
+                        if (selected != null) {
+                            // System.out.println("removing change listener");
+                            selected.removeChangeListener(listener);
+                        }
                     }
                 }
             });
@@ -648,10 +675,49 @@ public class PopupPanel extends JPanel {
             label.setAlignmentX(0.5f);
             vBox.add(label);
 
+            progress = new JProgressBar();
+            progress.setIndeterminate(true);
+            progress.setVisible(false);
+            vBox.add(progress);
+
+            // the same test, run over many results at once
+            Box hBox = Box.createHorizontalBox();
+            final JComboBox scope = new JComboBox(
+                    Main.getTestScopes().toArray());
+            hBox.add(scope);
+            JButton testButton = new JButton("Test on Results");
+            testButton.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    if (selected == null) {
+                        JOptionPane.showMessageDialog(
+                                TestPredicatePanel.this,
+                                "Choose a predicate to test first.",
+                                "Test on Results",
+                                JOptionPane.INFORMATION_MESSAGE);
+                        return;
+                    }
+                    TestPredicatePanel.this.m.testOnResults(selected,
+                            (String) scope.getSelectedItem());
+                }
+            });
+            hBox.add(testButton);
+            vBox.add(hBox);
+
             updateResult();
         }
 
+        private void cancelTest() {
+            if (worker != null) {
+                worker.cancel(true);
+                worker = null;
+            }
+            progress.setVisible(false);
+        }
+
         private void updateResult() {
+            cancelTest();
+
             if (selected == null) {
                 // clear
                 label.setText(" ");
@@ -659,18 +725,63 @@ public class PopupPanel extends JPanel {
                 List<BufferedImage> heatmaps = Collections.emptyList();
                 image.setTestResultPatches(patches);
                 image.setTestResultHeatmaps(heatmaps);
-            } else {
-                Cursor oldCursor = pp.getCursor();
+                return;
+            }
 
-                try {
-                    pp.setCursor(Cursor
-                            .getPredefinedCursor(Cursor.WAIT_CURSOR));
+            // read the predicate's options here, on the AWT thread
+            final SearchFactory factory;
+            final List<String> filterNames = selected.getFilterNames();
+            final String signature = m.getSignature(
+                    Collections.singletonList(selected));
+            try {
+                factory = m.createTestFactory(selected);
+            } catch (IOException e) {
+                e.printStackTrace();
+                label.setText("Could not create predicate");
+                return;
+            }
 
+            label.setText("Testing...");
+            progress.setVisible(true);
+
+            worker = new SwingWorker<ResultRegions, Object>() {
+                @Override
+                protected ResultRegions doInBackground() throws IOException {
                     ResultRegions regions;
                     if (objectID != null) {
-                        regions = m.getRegions(selected, objectID);
+                        regions = m.getRegions(factory, signature,
+                                filterNames, objectID, null);
                     } else {
-                        regions = m.getRegions(selected, encodePNM());
+                        regions = m.getRegions(factory, signature,
+                                filterNames, null, getEncodedImage());
+                    }
+                    if (regions != null) {
+                        // decode here, not in done()
+                        regions.getHeatmaps();
+                        regions.getPatches();
+                    }
+                    return regions;
+                }
+
+                @Override
+                protected void done() {
+                    if (worker != this) {
+                        // superseded
+                        return;
+                    }
+                    worker = null;
+                    progress.setVisible(false);
+
+                    ResultRegions regions;
+                    try {
+                        regions = get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace();
+                        label.setText("Test failed");
+                        return;
                     }
                     if (regions != null) {
                         label.setText("Object passed");
@@ -680,13 +791,17 @@ public class PopupPanel extends JPanel {
                     }
                     image.setTestResultHeatmaps(regions.getHeatmaps());
                     image.setTestResultPatches(regions.getPatches());
-                } catch (IOException e1) {
-                    // TODO Auto-generated catch block
-                    e1.printStackTrace();
-                } finally {
-                    pp.setCursor(oldCursor);
                 }
+            };
+            worker.execute();
+        }
+
+        // encoding may be slow, so only do it once
+        private synchronized byte[] getEncodedImage() throws IOException {
+            if (encodedImage == null) {
+                encodedImage = encodePNM();
             }
+            return encodedImage;
         }
 
         private byte[] encodePNM() throws IOException {
@@ -78,14 +78,30 @@ class PredicateListModel extends AbstractListModel {
     }
 
     public void addPredicate(final HyperFindPredicate p) {
-        SelectablePredicate sp = new SelectablePredicate(p,
-                INITIALLY_SELECTED);
+        addPredicate(p, INITIALLY_SELECTED);
+    }
+
+    public void addPredicate(HyperFindPredicate p, boolean selected) {
+        SelectablePredicate sp = new SelectablePredicate(p, selected);
         predicates.add(sp);
 
         int index = predicates.size() - 1;
         fireIntervalAdded(this, index, index);
     }
 
+    // one at a time, since PredicateList handles single removals only
+    public void clear() {
+        while (!predicates.isEmpty()) {
+            SelectablePredicate sp = predicates.get(predicates.size() - 1);
+            remove(sp);
+            sp.getPredicate().dispose();
+        }
+    }
+
+    List<SelectablePredicate> getPredicates() {
+        return new ArrayList<SelectablePredicate>(predicates);
+    }
+
     List<HyperFindPredicate> getSelectedPredicates() {
         List<HyperFindPredicate> result = new ArrayList<HyperFindPredicate>();
 
@@ -99,18 +115,15 @@ class PredicateListModel extends AbstractListModel {
     }
 
     List<Filter> createFilters() throws IOException {
-        // first, eliminate duplicates
-        Set<HyperFindPredicate> set = new HashSet<HyperFindPredicate>();
-        for (SelectablePredicate sp : predicates) {
-            if (sp.isSelected())
-                set.add(sp.getPredicate());
-        }
-
-        // System.out.println("set: " + set);
-
+        // predicates that would create the same filters, under whatever
+        // instance names, only need them once
+        Set<String> fingerprints = new HashSet<String>();
         List<Filter> result = new ArrayList<Filter>();
-        for (HyperFindPredicate p : set) {
-            result.addAll(p.createFilters());
+        for (SelectablePredicate sp : predicates) {
+            HyperFindPredicate p = sp.getPredicate();
+            if (sp.isSelected() && fingerprints.add(p.getFingerprint())) {
+                result.addAll(p.createFilters());
+            }
         }
 
         return result;
@@ -46,13 +46,23 @@ import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.swing.JComponent;
@@ -60,12 +70,15 @@ import javax.swing.JList;
 import javax.swing.TransferHandler;
 
 import edu.cmu.cs.diamond.opendiamond.SearchFactory;
-import edu.cmu.cs.diamond.opendiamond.Util;
 
 /**
  * Handles content export when drag from ResultList.
- * Images are first downloaded to a temp directory.
- * A URI list is return.
+ * Images are staged as PNG files in a temp directory and a URI list is
+ * returned.  The file names are derived from the objects, so staging starts
+ * in the background as soon as the drag does.  A drop made before they
+ * are all staged receives a directory that they stream into, so the AWT
+ * thread never waits for a fetch.  Staged files are kept for the session,
+ * so dragging the same objects again offers them without any fetch.
  */
 public class ResultExportTransferHandler extends TransferHandler {
     private static final DataFlavor uriListFlavor = new DataFlavor(
@@ -80,54 +93,42 @@ public class ResultExportTransferHandler extends TransferHandler {
         flavors.add(textPlainFlavor);
     }
 
-    private final SearchFactory factory;
+    // staging file -> pending or finished write, shared by all handlers
+    private static final ConcurrentMap<File, Future<File>> staged =
+            new ConcurrentHashMap<File, Future<File>>();
 
-    private final ExecutorService executor;
+    private static File stagingDir;
 
-    private class ExportTransferable implements Transferable {
-        private final List<Future<File>> futureFiles;
+    // numbers the directories of drops made before staging finished
+    private static final AtomicInteger dropCount = new AtomicInteger();
 
-        private final Future<String> futureURIList;
+    // how long a drop waits for files still being staged
+    private static final long DROP_WAIT_MILLIS = Long.getLong(
+            "hyperfind.drop-wait-ms", 500);
 
-        public ExportTransferable(final List<ResultIcon> results) {
-            futureFiles = new ArrayList<Future<File>>();
-            for (final ResultIcon r : results) {
-                futureFiles.add(executor.submit(new Callable<File>() {
-                    @Override
-                    public File call() throws Exception {
-                        // System.out.println("running...");
-                        BufferedImage img = Util
-                                .extractImageFromResultIdentifier(r
-                                        .getResult().getResult()
-                                        .getObjectIdentifier(), factory);
-                        File f = File.createTempFile("hyperfind-export-",
-                                ".png");
-                        f.deleteOnExit();
+    private final SearchFactory factory;
 
-                        ImageIO.write(img, "png", f);
+    private final String signature;
 
-                        // System.out.println("done");
+    private final ObjectCache cache;
 
-                        return f;
-                    }
-                }));
-            }
+    private final ExecutorService executor;
 
-            futureURIList = executor.submit(new Callable<String>() {
-                @Override
-                public String call() throws Exception {
-                    // System.out.println(f);
+    private final StatisticsBar stats;
 
-                    StringBuilder sb = new StringBuilder();
+    private class ExportTransferable implements Transferable {
+        private final List<File> files;
 
-                    for (Future<File> future : futureFiles) {
-                        File f = future.get();
-                        URI u = f.toURI();
-                        sb.append(u.toASCIIString() + "\r\n");
-                    }
-                    return sb.toString();
-                }
-            });
+        private final List<Future<File>> futureFiles;
+
+        // where the files go if they are not all staged at drop time;
+        // created on the first request for the data
+        private File dropDir;
+
+        public ExportTransferable(List<File> files,
+                List<Future<File>> futureFiles) {
+            this.files = files;
+            this.futureFiles = futureFiles;
         }
 
         @Override
@@ -141,40 +142,131 @@ public class ResultExportTransferHandler extends TransferHandler {
             return flavors.toArray(new DataFlavor[0]);
         }
 
+        /*
+         * Called on the AWT thread when the drop happens.  If every file
+         * is staged within a short grace period, the files themselves are
+         * dropped.  Otherwise a directory is dropped instead, holding the
+         * files staged so far; the rest appear in it as they are staged,
+         * and the status bar follows them.
+         */
         @Override
-        public Object getTransferData(DataFlavor flavor)
+        public synchronized Object getTransferData(DataFlavor flavor)
                 throws UnsupportedFlavorException, IOException {
             // System.out.println(flavor);
 
-            try {
-                if (flavor.equals(uriListFlavor)
-                        || flavor.equals(textPlainFlavor)) {
-                    String uriList = futureURIList.get();
-                    // System.out.println(uriList);
-                    return uriList;
-                } else {
-                    throw new UnsupportedFlavorException(flavor);
+            if (!flavor.equals(uriListFlavor)
+                    && !flavor.equals(textPlainFlavor)) {
+                throw new UnsupportedFlavorException(flavor);
+            }
+
+            if (dropDir != null) {
+                return dropDir.toURI().toASCIIString() + "\r\n";
+            }
+
+            long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(DROP_WAIT_MILLIS);
+            StringBuilder sb = new StringBuilder();
+            boolean staged = true;
+            for (int i = 0; i < files.size() && staged; i++) {
+                try {
+                    futureFiles.get(i).get(Math.max(
+                            deadline - System.nanoTime(), 0),
+                            TimeUnit.NANOSECONDS);
+                    sb.append(files.get(i).toURI().toASCIIString())
+                            .append("\r\n");
+                } catch (TimeoutException e) {
+                    staged = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (ExecutionException e) {
+                    rethrow(e);
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return null;
-            } catch (ExecutionException e) {
-                Throwable c = e.getCause();
-                if (c instanceof RuntimeException) {
-                    throw (RuntimeException) c;
-                } else if (c instanceof IOException) {
-                    throw (IOException) c;
+            }
+            if (staged) {
+                return sb.toString();
+            }
+
+            dropDir = new File(getStagingDir(), "hyperfind-"
+                    + dropCount.incrementAndGet());
+            Files.createDirectories(dropDir.toPath());
+            dropDir.deleteOnExit();
+            fillDropDir(dropDir, files, futureFiles);
+            return dropDir.toURI().toASCIIString() + "\r\n";
+        }
+    }
+
+    private static void rethrow(ExecutionException e) throws IOException {
+        Throwable c = e.getCause();
+        if (c instanceof RuntimeException) {
+            throw (RuntimeException) c;
+        } else if (c instanceof IOException) {
+            throw (IOException) c;
+        }
+        throw new IOException(c);
+    }
+
+    // links each staged file into dir as it is ready, reporting progress
+    private void fillDropDir(final File dir, final List<File> files,
+            final List<Future<File>> futureFiles) {
+        final int total = files.size();
+        stats.holdProgress();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int done = 0;
+                int failed = 0;
+                try {
+                    for (int i = 0; i < total; i++) {
+                        try {
+                            File f = futureFiles.get(i).get();
+                            link(f, new File(dir, f.getName()));
+                        } catch (ExecutionException e) {
+                            e.getCause().printStackTrace();
+                            failed++;
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            failed++;
+                        }
+                        done++;
+                        stats.postProgress("Exporting to " + dir.getName()
+                                + ": " + done + " of " + total, done, total);
+                    }
+                    String message = "Exported " + (done - failed)
+                            + " files to " + dir.getName();
+                    if (failed > 0) {
+                        message += ", " + failed + " could not be staged";
+                    }
+                    stats.postProgress(message, total, total);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    stats.releaseProgress();
                 }
-                e.printStackTrace();
-                return null;
             }
+        });
+    }
+
+    // a hard link if the file system allows, since staged files are kept
+    private static void link(File staged, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), staged.toPath());
+        } catch (UnsupportedOperationException e) {
+            Files.copy(staged.toPath(), target.toPath());
+        } catch (IOException e) {
+            Files.copy(staged.toPath(), target.toPath());
         }
+        target.deleteOnExit();
     }
 
     public ResultExportTransferHandler(SearchFactory factory,
-            ExecutorService executor) {
+            String signature, ObjectCache cache, ExecutorService executor,
+            StatisticsBar stats) {
         this.factory = factory;
+        this.signature = signature;
+        this.cache = cache;
         this.executor = executor;
+        this.stats = stats;
     }
 
     @Override
@@ -190,29 +282,89 @@ public class ResultExportTransferHandler extends TransferHandler {
 
         final Object[] values = list.getSelectedValues();
 
-        List<ResultIcon> results = new ArrayList<ResultIcon>();
+        File dir;
+        try {
+            dir = getStagingDir();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
 
+        List<File> files = new ArrayList<File>();
+        List<Future<File>> futureFiles = new ArrayList<Future<File>>();
         for (Object o : values) {
             ResultIcon r = (ResultIcon) o;
-            results.add(r);
+            HyperFindResult result = r.getResult();
+            String key = signature + '\n' + ResultExporter.objectKey(result);
+            File f = new File(dir, UUID.nameUUIDFromBytes(
+                    key.getBytes(StandardCharsets.UTF_8)) + ".png");
+            files.add(f);
+            futureFiles.add(stage(result, f));
         }
 
-        ExportTransferable t = new ExportTransferable(results);
+        return new ExportTransferable(files, futureFiles);
+    }
 
-        // force the computation in the UI thread here to avoid terrible
-        // drag and drop race conditions
+    private Future<File> stage(final HyperFindResult result, final File f) {
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                if (result.isRestored()) {
+                    throw new IOException("Result restored from a session; "
+                            + "resume the search to export it");
+                }
+                BufferedImage img = cache.getImage(factory, signature,
+                        result.getObjectIdentifier());
+                // never expose a partial file under the final name
+                File part = new File(f.getPath() + ".part");
+                try {
+                    ImageIO.write(img, "png", part);
+                    Files.move(part.toPath(), f.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    part.delete();
+                }
+                f.deleteOnExit();
+                return f;
+            }
+        });
+
+        Future<File> existing = staged.putIfAbsent(f, task);
+        if (existing != null) {
+            if (!isFailed(existing)) {
+                return existing;
+            }
+            // retry objects that could not be staged before
+            if (!staged.replace(f, existing, task)) {
+                return staged.get(f);
+            }
+        }
+        executor.execute(task);
+        return task;
+    }
+
+    private static boolean isFailed(Future<File> future) {
+        if (!future.isDone()) {
+            return false;
+        }
         try {
-            t.futureURIList.get();
+            future.get();
+            return false;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-        } catch (ExecutionException e) {
-            Throwable th = e.getCause();
-            if (th instanceof RuntimeException) {
-                throw (RuntimeException) th;
-            }
-            e.printStackTrace();
+            return false;
+        } catch (Exception e) {
+            return true;
         }
+    }
 
-        return t;
+    private static synchronized File getStagingDir() throws IOException {
+        if (stagingDir == null) {
+            Path dir = Files.createTempDirectory("hyperfind-export-");
+            stagingDir = dir.toFile();
+            // registered first, so deleted after the files in it
+            stagingDir.deleteOnExit();
+        }
+        return stagingDir;
     }
 }
@@ -0,0 +1,379 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import edu.cmu.cs.diamond.opendiamond.Result;
+import edu.cmu.cs.diamond.opendiamond.SearchFactory;
+import edu.cmu.cs.diamond.opendiamond.Util;
+
+/**
+ * Streams full-resolution objects to disk, one subdirectory per marker.
+ * Objects are fetched with a single factory, a bounded number at a time,
+ * and written straight into the destination.  Objects that are already
+ * JPEG, PNG or GIF are written as fetched; anything else is decoded by the
+ * codec and written as PNG.
+ * <p>
+ * Progress is recorded in an {@link ExportManifest} next to the output.
+ * Rerunning an export into the same directory skips objects that were
+ * already saved, as long as their files still match the size and checksum
+ * in the manifest, and failed fetches are retried with exponential back-off.
+ */
+final class ResultExporter {
+
+    interface ProgressListener {
+        // called on export threads
+        void progress(int completed, int failed, int total);
+    }
+
+    private static final byte[][] PASS_THROUGH_MAGIC = {
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},
+            {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'},
+            {'G', 'I', 'F', '8'},
+    };
+
+    private static final String[] PASS_THROUGH_EXTENSIONS = {
+            ".jpg", ".png", ".gif",
+    };
+
+    private static final int RETRIES =
+            Integer.getInteger("hyperfind.export-retries", 3);
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    private final SearchFactory factory;
+
+    private final ExecutorService executor;
+
+    private final int maxInFlight;
+
+    private volatile boolean cancelled;
+
+    public ResultExporter(SearchFactory factory, ExecutorService executor,
+            int maxInFlight) {
+        this.factory = factory;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /*
+     * Export results into root/<marker>/, blocking until every object has
+     * been written or has failed, or the export is cancelled.  Returns the
+     * number of objects saved, including those saved by earlier runs.
+     */
+    public int export(Map<String, List<HyperFindResult>> byMarker, Path root,
+            final ProgressListener listener) throws IOException,
+            InterruptedException {
+        int count = 0;
+        for (List<HyperFindResult> results : byMarker.values()) {
+            count += results.size();
+        }
+        final int total = count;
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final ExportManifest manifest = ExportManifest.open(root);
+
+        try {
+            for (Map.Entry<String, List<HyperFindResult>> e :
+                    byMarker.entrySet()) {
+                final String marker = e.getKey();
+                Path dir = root.resolve(marker);
+                Files.createDirectories(dir);
+                Set<String> names = manifest.getNames(marker);
+
+                for (final HyperFindResult r : e.getValue()) {
+                    final String key = objectKey(r);
+                    ExportManifest.Entry prev = manifest.get(marker, key);
+                    if (prev != null && prev.isDone()
+                            && isIntact(root, prev)) {
+                        listener.progress(completed.incrementAndGet(),
+                                failed.get(), total);
+                        continue;
+                    }
+                    // reuse the name from an earlier attempt
+                    final String name = prev != null
+                            ? ExportManifest.baseName(prev.path)
+                            : uniqueName(r, names);
+
+                    inFlight.acquire();
+                    if (cancelled) {
+                        inFlight.release();
+                        return completed.get();
+                    }
+                    final Path base = dir.resolve(name);
+                    Runnable task = new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (!cancelled) {
+                                    writeWithRetries(r, key, marker, base,
+                                            root, manifest);
+                                    completed.incrementAndGet();
+                                }
+                            } catch (Exception e) {
+                                System.err.println("Could not export "
+                                        + r.getName() + ": " + e);
+                                failed.incrementAndGet();
+                                try {
+                                    manifest.record(new ExportManifest.Entry(
+                                            key, marker, relative(root, base),
+                                            -1, "-", ExportManifest.FAILED));
+                                } catch (IOException e1) {
+                                    e1.printStackTrace();
+                                }
+                            } finally {
+                                inFlight.release();
+                            }
+                            listener.progress(completed.get(), failed.get(),
+                                    total);
+                        }
+                    };
+                    try {
+                        executor.execute(task);
+                    } catch (RuntimeException ex) {
+                        inFlight.release();
+                        throw ex;
+                    }
+                }
+            }
+        } finally {
+            // wait for in-flight writes, so none is left half done
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+            manifest.close();
+        }
+        return completed.get();
+    }
+
+    /*
+     * Use the object's _ObjectID attribute if the search pushed it, since
+     * it is stable across searches; otherwise fall back to the name.
+     */
+    static String objectKey(HyperFindResult r) {
+        byte[] id = r.getValue("_ObjectID");
+        if (id != null) {
+            return Util.extractString(id);
+        }
+        return r.getName();
+    }
+
+    private void writeWithRetries(HyperFindResult r, String key, String marker,
+            Path base, Path root, ExportManifest manifest)
+            throws IOException, InterruptedException {
+        if (r.isRestored()) {
+            // retrying will not help
+            throw new IOException("Result restored from a session; resume "
+                    + "the search to export it");
+        }
+        long backoff = INITIAL_BACKOFF_MS;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Path target = write(r, base);
+                manifest.record(new ExportManifest.Entry(key, marker,
+                        relative(root, target), Files.size(target),
+                        checksum(target), ExportManifest.DONE));
+                return;
+            } catch (IOException e) {
+                if (attempt >= RETRIES || cancelled) {
+                    throw e;
+                }
+                System.err.println("Retrying " + r.getName() + " in "
+                        + backoff + " ms: " + e);
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    /*
+     * Write to base plus an extension chosen from the object's format,
+     * going through a temporary file so partial objects never appear under
+     * their final name.  Returns the file written.
+     */
+    private Path write(HyperFindResult r, Path base) throws IOException {
+        // not through the ObjectCache: each object is written once, and
+        // a large export would only push out the objects being looked at
+        Set<String> attributes = Collections.emptySet();
+        Result full = factory.generateResult(r.getObjectIdentifier(),
+                attributes);
+        byte[] data = full.getData();
+
+        String ext = passThroughExtension(data);
+        Path target = base.resolveSibling(base.getFileName() + (ext != null
+                ? ext : ".png"));
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        try {
+            if (ext != null) {
+                Files.write(part, data);
+            } else {
+                BufferedImage img = Util.extractImageFromResult(full);
+                if (img == null) {
+                    throw new IOException("Could not decode object");
+                }
+                OutputStream out = Files.newOutputStream(part);
+                try {
+                    ImageIO.write(img, "png", out);
+                } finally {
+                    out.close();
+                }
+            }
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+        return target;
+    }
+
+    /*
+     * True if the file of a finished entry is still what was written; a
+     * truncated or modified file is exported again.
+     */
+    private static boolean isIntact(Path root, ExportManifest.Entry e) {
+        Path file = root.resolve(e.path);
+        try {
+            if (!Files.isRegularFile(file)
+                    || Files.size(file) != e.size) {
+                return false;
+            }
+            return e.checksum.equals(checksum(file));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static String checksum(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        InputStream in = Files.newInputStream(file);
+        try {
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    // manifest paths always use '/', whatever the platform
+    private static String relative(Path root, Path file) {
+        return root.relativize(file).toString().replace(
+                file.getFileSystem().getSeparator(), "/");
+    }
+
+    private static String passThroughExtension(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        outer:
+        for (int i = 0; i < PASS_THROUGH_MAGIC.length; i++) {
+            byte[] magic = PASS_THROUGH_MAGIC[i];
+            if (data.length < magic.length) {
+                continue;
+            }
+            for (int j = 0; j < magic.length; j++) {
+                if (data[j] != magic[j]) {
+                    continue outer;
+                }
+            }
+            return PASS_THROUGH_EXTENSIONS[i];
+        }
+        return null;
+    }
+
+    // file name without extension, derived from the object name
+    private static String uniqueName(HyperFindResult r, Set<String> used) {
+        String name = r.getName();
+        if (name == null) {
+            name = "";
+        }
+        name = ExportManifest.baseName(name);
+        // no dots, so that the manifest can strip extensions
+        name = name.replaceAll("[^A-Za-z0-9_-]", "_");
+        if (name.isEmpty()) {
+            name = "object";
+        }
+
+        String unique = name;
+        for (int i = 1; !used.add(unique); i++) {
+            unique = name + "-" + i;
+        }
+        return unique;
+    }
+}
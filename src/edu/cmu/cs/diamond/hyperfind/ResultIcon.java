@@ -40,23 +40,48 @@
 
 package edu.cmu.cs.diamond.hyperfind;
 
-import java.util.List;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
 
 import javax.swing.Icon;
-import javax.swing.ImageIcon;
-
-import edu.cmu.cs.diamond.opendiamond.ObjectIdentifier;
 
+/**
+ * A search result in the ThumbnailBox.  Only the thumbnail dimensions are
+ * kept here; the decoded thumbnail is fetched from a ThumbnailCache when
+ * the icon is painted, so results that are never scrolled into view are
+ * never decoded.
+ */
 class ResultIcon {
 
+    private static final Color PLACEHOLDER_COLOR = new Color(0xe0e0e0);
+
+    private static final Color PASSED_COLOR = new Color(0x00c000);
+
+    private static final Color DROPPED_COLOR = new Color(0xc00000);
+
+    private static final Color FAILED_COLOR = Color.ORANGE;
+
+    private static final Color DROPPED_WASH = new Color(0xa0ffffff, true);
+
+    private static final int VERDICT_BORDER = 3;
+
     private final HyperFindResult result;
 
     private final String name;
 
-    private final ImageIcon icon;
+    private final Icon icon;
 
     private final ResultIconSetting displaySelection;
 
+    // outcome of the last predicate tested on this result
+    private volatile Verdict verdict = Verdict.NONE;
+
+    // regions found by that predicate; null unless it passed
+    private volatile ResultRegions testRegions;
+
     public String getName() {
         return name;
     }
@@ -65,12 +90,73 @@ class ResultIcon {
         ICON_ONLY, LABEL_ONLY, ICON_AND_LABEL
     };
 
-    public ResultIcon(HyperFindResult result, String name, ImageIcon icon,
+    public enum Verdict {
+        NONE, PASSED, DROPPED, FAILED
+    }
+
+    public ResultIcon(HyperFindResult result, String name,
+            final Dimension size, final ThumbnailCache cache,
             ResultIconSetting displaySelection) {
         this.result = result;
         this.name = name;
-        this.icon = icon;
         this.displaySelection = displaySelection;
+
+        final ResultIcon resultIcon = this;
+        this.icon = new Icon() {
+            @Override
+            public void paintIcon(Component c, Graphics g, int x, int y) {
+                BufferedImage img = cache.get(resultIcon, c);
+                if (img != null) {
+                    g.drawImage(img, x, y, size.width, size.height, null);
+                } else {
+                    // not decoded yet; the cache will repaint us
+                    g.setColor(PLACEHOLDER_COLOR);
+                    g.fillRect(x, y, size.width, size.height);
+                }
+                paintVerdict(g, x, y, size);
+            }
+
+            @Override
+            public int getIconWidth() {
+                return size.width;
+            }
+
+            @Override
+            public int getIconHeight() {
+                return size.height;
+            }
+        };
+    }
+
+    private void paintVerdict(Graphics g, int x, int y, Dimension size) {
+        Verdict v = verdict;
+        if (v == Verdict.NONE) {
+            return;
+        }
+        if (v == Verdict.DROPPED) {
+            g.setColor(DROPPED_WASH);
+            g.fillRect(x, y, size.width, size.height);
+        }
+        g.setColor(v == Verdict.PASSED ? PASSED_COLOR
+                : v == Verdict.DROPPED ? DROPPED_COLOR : FAILED_COLOR);
+        for (int i = 0; i < VERDICT_BORDER; i++) {
+            g.drawRect(x + i, y + i, size.width - 1 - 2 * i,
+                    size.height - 1 - 2 * i);
+        }
+    }
+
+    // called on any thread; the caller repaints
+    void setVerdict(Verdict verdict, ResultRegions testRegions) {
+        this.testRegions = testRegions;
+        this.verdict = verdict;
+    }
+
+    Verdict getVerdict() {
+        return verdict;
+    }
+
+    ResultRegions getTestRegions() {
+        return testRegions;
     }
 
     public HyperFindResult getResult() {
@@ -0,0 +1,365 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * List model for search results.  Results may be appended from any thread;
+ * they are queued and become visible in batches, at most once per frame,
+ * with a single intervalAdded event per batch.
+ * <p>
+ * The list may show a view of the results instead: those whose score for
+ * one filter reaches a threshold, optionally best first.  Indices of the
+ * model are then positions in the view; "result indices" are positions
+ * among all results, in arrival order.  Results arriving while a view is
+ * shown are merged into it, so each frame costs only its new results.
+ */
+final class ResultListModel extends AbstractListModel {
+
+    // told of every result as it arrives, whether the view shows it or not
+    interface ArrivalListener {
+        void arrived(ResultIcon icon);
+    }
+
+    private static final int FRAMES_PER_SECOND = Integer.getInteger(
+            "hyperfind.list-fps", 60);
+
+    // results received so far; only touched on the AWT thread
+    private final List<ResultIcon> elements = new ArrayList<ResultIcon>();
+
+    // scores of elements, row for row
+    private final ScoreIndex scores = new ScoreIndex();
+
+    // result indices shown, in view[0..viewSize), or null to show all
+    private int[] view;
+
+    private int viewSize;
+
+    // position of each result index in view, or -1 if hidden; null if
+    // stale, and rebuilt when asked for
+    private int[] viewIndex;
+
+    private ArrivalListener arrivalListener;
+
+    private String scoreFilter;
+
+    private double threshold = Double.NEGATIVE_INFINITY;
+
+    private boolean sortByScore;
+
+    private boolean changingView;
+
+    // ResultIcons and Runnables waiting for the next frame
+    private List<Object> pending = new ArrayList<Object>();
+
+    // when the oldest pending item was queued
+    private long pendingSince;
+
+    private final Timer timer;
+
+    public ResultListModel() {
+        this(new ArrayList<ResultIcon>());
+    }
+
+    // starts out showing initial; call on the AWT thread
+    public ResultListModel(Collection<ResultIcon> initial) {
+        elements.addAll(initial);
+        for (ResultIcon icon : initial) {
+            scores.add(icon.getResult());
+        }
+        timer = new Timer(1000 / Math.max(FRAMES_PER_SECOND, 1),
+                new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        timer.setRepeats(false);
+    }
+
+    @Override
+    public Object getElementAt(int index) {
+        return elements.get(view != null ? view[index] : index);
+    }
+
+    @Override
+    public int getSize() {
+        return view != null ? viewSize : elements.size();
+    }
+
+    // call on AWT thread
+    void setArrivalListener(ArrivalListener l) {
+        arrivalListener = l;
+    }
+
+    // every result, shown or not, in arrival order; call on AWT thread
+    public List<ResultIcon> getAllElements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    // call on AWT thread
+    ScoreIndex getScores() {
+        return scores;
+    }
+
+    /*
+     * Show only results whose score for filterName is at least threshold,
+     * best first if sort is set; a null filterName shows everything.
+     * Call on AWT thread.
+     */
+    public void setScoreView(String filterName, double threshold,
+            boolean sort) {
+        this.scoreFilter = filterName;
+        this.threshold = threshold;
+        this.sortByScore = sort;
+        updateView();
+    }
+
+    // call on AWT thread
+    public int getResultIndex(int index) {
+        return view != null ? view[index] : index;
+    }
+
+    // -1 if the result is hidden; call on AWT thread
+    public int getViewIndex(int resultIndex) {
+        if (resultIndex < 0 || resultIndex >= elements.size()) {
+            return -1;
+        }
+        if (view == null) {
+            return resultIndex;
+        }
+        if (viewIndex == null) {
+            viewIndex = new int[elements.size()];
+            Arrays.fill(viewIndex, -1);
+            for (int i = 0; i < viewSize; i++) {
+                viewIndex[view[i]] = i;
+            }
+        }
+        return viewIndex[resultIndex];
+    }
+
+    /*
+     * True while the events of a view change are being delivered.  List
+     * selections follow the results they select when rows are inserted,
+     * but not when the whole view is rebuilt; listeners told of a rebuild
+     * should select again.
+     */
+    public boolean isChangingView() {
+        return changingView;
+    }
+
+    // told on the AWT thread after the view was rebuilt
+    public void addChangeListener(ChangeListener l) {
+        listenerList.add(ChangeListener.class, l);
+    }
+
+    public void removeChangeListener(ChangeListener l) {
+        listenerList.remove(ChangeListener.class, l);
+    }
+
+    public void append(ResultIcon icon) {
+        enqueue(icon);
+    }
+
+    public void appendAll(Collection<ResultIcon> icons) {
+        synchronized (this) {
+            for (ResultIcon icon : icons) {
+                enqueue(icon);
+            }
+        }
+    }
+
+    // runs r on the AWT thread once everything appended so far is visible
+    public void invokeAfterPending(Runnable r) {
+        enqueue(r);
+    }
+
+    private synchronized void enqueue(Object o) {
+        if (pending.isEmpty()) {
+            pendingSince = System.nanoTime();
+            timer.start();
+        }
+        pending.add(o);
+    }
+
+    // called on AWT thread
+    private void flush() {
+        List<Object> batch;
+        long delay;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<Object>();
+            delay = System.nanoTime() - pendingSince;
+        }
+        // time the oldest item of the batch waited to become visible
+        PipelineMetrics.getInstance().record(PipelineMetrics.Stage.PUBLISH,
+                delay);
+
+        int first = elements.size();
+        int added = 0;
+        for (Object o : batch) {
+            if (o instanceof ResultIcon) {
+                ResultIcon icon = (ResultIcon) o;
+                elements.add(icon);
+                added++;
+                scores.add(icon.getResult());
+                if (arrivalListener != null) {
+                    arrivalListener.arrived(icon);
+                }
+            } else {
+                first = fireAdded(first);
+                ((Runnable) o).run();
+            }
+        }
+        fireAdded(first);
+        PipelineMetrics.getInstance().recordListUpdate(added);
+    }
+
+    // announces elements from first onward; returns the new end
+    private int fireAdded(int first) {
+        int end = elements.size();
+        if (end > first) {
+            if (view != null) {
+                merge(first, end);
+            } else {
+                fireIntervalAdded(this, first, end - 1);
+            }
+        }
+        return end;
+    }
+
+    // adds the passing results among rows [first, end) to the view
+    private void merge(int first, int end) {
+        viewIndex = null;
+        changingView = true;
+        try {
+            if (!sortByScore) {
+                int oldSize = viewSize;
+                for (int row = first; row < end; row++) {
+                    if (!(scores.getScore(scoreFilter, row) < threshold)) {
+                        insert(viewSize, row);
+                    }
+                }
+                if (viewSize > oldSize) {
+                    fireIntervalAdded(this, oldSize, viewSize - 1);
+                }
+                return;
+            }
+            for (int row = first; row < end; row++) {
+                double score = scores.getScore(scoreFilter, row);
+                if (score < threshold) {
+                    continue;
+                }
+                // after every result that ranks no lower, so that equal
+                // scores stay in arrival order
+                int lo = 0;
+                int hi = viewSize;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (ScoreIndex.ranksBefore(score,
+                            scores.getScore(scoreFilter, view[mid]))) {
+                        hi = mid;
+                    } else {
+                        lo = mid + 1;
+                    }
+                }
+                insert(lo, row);
+                fireIntervalAdded(this, lo, lo);
+            }
+        } finally {
+            changingView = false;
+        }
+    }
+
+    private void insert(int index, int row) {
+        if (viewSize == view.length) {
+            view = Arrays.copyOf(view, Math.max(16, view.length * 2));
+        }
+        System.arraycopy(view, index, view, index + 1, viewSize - index);
+        view[index] = row;
+        viewSize++;
+    }
+
+    private void updateView() {
+        int oldSize = getSize();
+        viewIndex = null;
+        if (scoreFilter == null) {
+            view = null;
+            viewSize = 0;
+        } else {
+            view = scores.select(scoreFilter, threshold, sortByScore);
+            viewSize = view.length;
+        }
+        int newSize = getSize();
+
+        changingView = true;
+        try {
+            if (newSize > oldSize) {
+                fireIntervalAdded(this, oldSize, newSize - 1);
+            } else if (newSize < oldSize) {
+                fireIntervalRemoved(this, newSize, oldSize - 1);
+            }
+            if (Math.min(oldSize, newSize) > 0) {
+                fireContentsChanged(this, 0, Math.min(oldSize, newSize) - 1);
+            }
+        } finally {
+            changingView = false;
+        }
+
+        ChangeEvent e = new ChangeEvent(this);
+        for (ChangeListener l : listenerList.getListeners(
+                ChangeListener.class)) {
+            l.stateChanged(e);
+        }
+    }
+}
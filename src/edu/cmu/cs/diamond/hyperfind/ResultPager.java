@@ -0,0 +1,178 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Splits the result stream into pages of "Get next N results".  Up to
+ * readAhead results past the end of the current page are fetched and kept
+ * hidden, so that the next page can be shown without waiting for the
+ * servers.  Read-ahead stops early if the hidden results hold more than
+ * maxHeldBytes of attribute data.
+ */
+final class ResultPager {
+
+    private final int pageSize;
+
+    private final int readAhead;
+
+    private final long maxHeldBytes;
+
+    // a result past the end of the current page
+    private static final class Held {
+        private final ResultIcon icon;
+
+        // attribute bytes, measured once outside the lock
+        private final long size;
+
+        private Held(ResultIcon icon, long size) {
+            this.icon = icon;
+            this.size = size;
+        }
+    }
+
+    // results past the end of the current page, in arrival order
+    private final ArrayDeque<Held> held = new ArrayDeque<Held>();
+
+    private long heldBytes;
+
+    private long fetched;
+
+    private long shown;
+
+    // number of results the user has asked to see so far
+    private long limit;
+
+    public ResultPager(int pageSize, int readAhead, long maxHeldBytes) {
+        this.pageSize = pageSize;
+        this.readAhead = readAhead;
+        this.maxHeldBytes = maxHeldBytes;
+        limit = pageSize;
+    }
+
+    // called by the fetch thread before each result is fetched
+    public synchronized void awaitFetch() throws InterruptedException {
+        while (isPaused()) {
+            wait();
+        }
+        fetched++;
+    }
+
+    /*
+     * True if the fetch thread is held back until the user asks for the
+     * next page, so the servers are waiting on us rather than searching.
+     */
+    public synchronized boolean isPaused() {
+        return fetched >= limit + readAhead || heldBytes > maxHeldBytes;
+    }
+
+    // gives back the slot of a fetched result that will not be admitted
+    public synchronized void release() {
+        fetched--;
+        notifyAll();
+    }
+
+    /*
+     * Called in arrival order for each decoded result.  Appends it to model
+     * if it belongs on the current page, and returns true; otherwise holds
+     * it for a later page.  Appending under the pager's lock keeps it from
+     * overtaking a page that nextPage() is handing out.
+     */
+    public boolean admit(ResultIcon icon, ResultListModel model) {
+        // the attributes may be off the heap; don't walk them under the
+        // lock nextPage() takes on the AWT thread
+        long size = sizeOf(icon);
+        synchronized (this) {
+            if (held.isEmpty() && shown < limit) {
+                shown++;
+                model.append(icon);
+                return true;
+            }
+            held.add(new Held(icon, size));
+            heldBytes += size;
+            return false;
+        }
+    }
+
+    public synchronized boolean isPageFull() {
+        return shown >= limit;
+    }
+
+    /*
+     * Starts the next page, appending the held results that now belong on
+     * the screen to model ahead of anything admitted afterward.
+     */
+    public synchronized void nextPage(ResultListModel model) {
+        limit += pageSize;
+        List<ResultIcon> page = new ArrayList<ResultIcon>();
+        while (shown < limit && !held.isEmpty()) {
+            Held h = held.remove();
+            heldBytes -= h.size;
+            page.add(h.icon);
+            shown++;
+        }
+        model.appendAll(page);
+        notifyAll();
+    }
+
+    // blocks until every held result has been handed out by nextPage()
+    public synchronized void awaitDrained() throws InterruptedException {
+        while (!held.isEmpty()) {
+            wait();
+        }
+    }
+
+    private static long sizeOf(ResultIcon icon) {
+        HyperFindResult r = icon.getResult();
+        long size = 0;
+        for (String key : r.getKeys()) {
+            byte[] value = r.getValue(key);
+            if (value != null) {
+                size += value.length;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cmu.cs.diamond.opendiamond.ObjectIdentifier;
+import edu.cmu.cs.diamond.opendiamond.Result;
+import edu.cmu.cs.diamond.opendiamond.SearchFactory;
+
+/**
+ * Runs a set of filters again over objects that are already known, by
+ * object identifier, instead of searching the whole scope.  Objects are
+ * fetched in batches on a pool of hyperfind.reevaluate-threads threads,
+ * through the shared ObjectCache and a single SearchFactory, and each
+ * verdict is reported as soon as it is known.
+ */
+final class ResultReevaluator {
+
+    interface Listener {
+        /*
+         * Called on a pool thread.  r is the fetched result, or null if
+         * the object was dropped.
+         */
+        void evaluated(int index, HyperFindResult hr, Result r);
+
+        /*
+         * Called on a pool thread; the object could not be fetched or
+         * evaluated.
+         */
+        void failed(int index, HyperFindResult hr, IOException e);
+
+        /*
+         * Called once, after every object has been reported or after
+         * cancel().
+         */
+        void finished(boolean cancelled);
+    }
+
+    private static final int THREADS = Math.max(1, Integer.getInteger(
+            "hyperfind.reevaluate-threads", 8));
+
+    // objects fetched by one task, one after another
+    private static final int BATCH_SIZE = 16;
+
+    private final SearchFactory factory;
+
+    private final String signature;
+
+    private final List<String> filterNames;
+
+    private final Set<String> attributes;
+
+    private final ObjectCache cache;
+
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private ExecutorService executor;
+
+    private volatile Listener listener;
+
+    /*
+     * filterNames are the filters an object must pass; attributes are
+     * fetched along with the verdict.
+     */
+    ResultReevaluator(SearchFactory factory, String signature,
+            Collection<String> filterNames, Set<String> attributes,
+            ObjectCache cache) {
+        this.factory = factory;
+        this.signature = signature;
+        this.filterNames = new ArrayList<String>(filterNames);
+        this.attributes = Collections.unmodifiableSet(attributes);
+        this.cache = cache;
+    }
+
+    /*
+     * Start evaluating.  Results without an object identifier are
+     * reported as failed.  May only be called once.
+     */
+    synchronized void start(final List<HyperFindResult> results,
+            Listener l) {
+        if (listener != null) {
+            throw new IllegalStateException("Already started");
+        }
+        listener = l;
+        if (results.isEmpty()) {
+            finish(false);
+            return;
+        }
+
+        executor = Executors.newFixedThreadPool(THREADS);
+        int batches = (results.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        final AtomicInteger remaining = new AtomicInteger(batches);
+        for (int b = 0; b < batches; b++) {
+            final int first = b * BATCH_SIZE;
+            final int end = Math.min(first + BATCH_SIZE, results.size());
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < end && !cancelled.get();
+                                i++) {
+                            evaluate(i, results.get(i));
+                        }
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            finish(false);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    void cancel() {
+        cancelled.set(true);
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        finish(true);
+    }
+
+    boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    // true if r passed every filter in filterNames
+    static boolean passed(Result r, Collection<String> filterNames) {
+        for (String name : filterNames) {
+            if (r.getValue(ScoreIndex.getAttributeName(name)) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void evaluate(int index, HyperFindResult hr) {
+        ObjectIdentifier id = hr.getObjectIdentifier();
+        if (id == null) {
+            listener.failed(index, hr, new IOException(
+                    "Result restored from a session; cannot reevaluate"));
+            return;
+        }
+        try {
+            Result r = cache.getResult(factory, signature, id, attributes);
+            listener.evaluated(index, hr,
+                    passed(r, filterNames) ? r : null);
+        } catch (IOException e) {
+            if (!cancelled.get()) {
+                listener.failed(index, hr, e);
+            }
+        } catch (RuntimeException e) {
+            // a broken object must not take the rest of the batch with it
+            if (!cancelled.get()) {
+                listener.failed(index, hr, new IOException(
+                        "Could not reevaluate object", e));
+            }
+        }
+    }
+
+    private void finish(boolean wasCancelled) {
+        // nothing to report if cancelled before it started
+        if (listener != null && finished.compareAndSet(false, true)) {
+            listener.finished(wasCancelled);
+        }
+    }
+}
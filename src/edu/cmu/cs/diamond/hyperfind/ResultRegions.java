@@ -40,69 +40,219 @@
 
 package edu.cmu.cs.diamond.hyperfind;
 
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.*;
 import javax.imageio.ImageIO;
 
 import edu.cmu.cs.diamond.opendiamond.Result;
 
+/**
+ * Patches and heatmaps attached to a result by its filters.  Nothing is
+ * read on construction; the attribute values are fetched and decoded the
+ * first time they are asked for, since most results are only ever seen as
+ * a thumbnail.
+ */
 public class ResultRegions {
 
+    private final Collection<String> filterNames;
+
+    // exactly one of these is set, unless there are no filters
+    private final Result result;
+
+    private final HyperFindResult source;
+
+    private boolean patchesDecoded;
+
+    private boolean heatmapsDecoded;
+
     private final Map<String, List<BoundingBox>> patches =
-            new HashMap<String, List<BoundingBox>>();
+            new LinkedHashMap<String, List<BoundingBox>>();
 
     private final Map<String, BufferedImage> heatmaps =
-            new HashMap<String, BufferedImage>();
+            new LinkedHashMap<String, BufferedImage>();
+
+    // heatmaps shrunk for thumbnails, dropped if memory runs short
+    private SoftReference<List<BufferedImage>> reducedHeatmaps;
+
+    // minimum size the reduced heatmaps were computed for
+    private Dimension reducedSize;
 
     ResultRegions() {
         // construct a dummy object with no regions
+        this.filterNames = Collections.emptyList();
+        this.result = null;
+        this.source = null;
     }
 
     ResultRegions(Collection<String> filterNames, Result r) {
-        for (String name : filterNames) {
-            // patches
-            byte[] patch = r.getValue(getPatchAttributeName(name));
-            if (patch != null) {
-                patches.put(name, BoundingBox.fromPatchesList(patch));
-            }
+        this.filterNames = filterNames;
+        this.result = r;
+        this.source = null;
+    }
 
-            // heatmap
-            byte[] heatmap = r.getValue(getHeatmapAttributeName(name));
-            if (heatmap != null) {
-                ByteArrayInputStream in = new ByteArrayInputStream(heatmap);
-                try {
-                    heatmaps.put(name, ImageIO.read(in));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /*
+     * Reads through the HyperFindResult, whose attributes may have moved
+     * off the heap by the time they are needed.
+     */
+    ResultRegions(Collection<String> filterNames, HyperFindResult hr) {
+        this.filterNames = filterNames;
+        this.result = null;
+        this.source = hr;
+    }
+
+    private byte[] getValue(String key) {
+        return result != null ? result.getValue(key) : source.getValue(key);
     }
 
     public List<BoundingBox> getPatches() {
         List<BoundingBox> boxes = new ArrayList<BoundingBox>();
-        for (List<BoundingBox> cur : patches.values()) {
+        for (List<BoundingBox> cur : decodePatches().values()) {
             boxes.addAll(cur);
         }
         return boxes;
     }
 
     public List<BoundingBox> getPatches(String filterName) {
-        if (patches.containsKey(filterName)) {
-            return patches.get(filterName);
+        Map<String, List<BoundingBox>> decoded = decodePatches();
+        if (decoded.containsKey(filterName)) {
+            return decoded.get(filterName);
         } else {
             return Collections.emptyList();
         }
     }
 
     public List<BufferedImage> getHeatmaps() {
-        return new ArrayList<BufferedImage>(heatmaps.values());
+        return new ArrayList<BufferedImage>(decodeHeatmaps().values());
     }
 
     public BufferedImage getHeatmap(String filterName) {
-        return heatmaps.get(filterName);
+        return decodeHeatmaps().get(filterName);
+    }
+
+    /**
+     * Returns the heatmaps shrunk by an integer factor, averaging each
+     * block of pixels, to the smallest size that is still at least
+     * width x height.  The result is cached, but decoding it does not cause
+     * the full-size heatmaps to be retained.
+     */
+    public synchronized List<BufferedImage> getReducedHeatmaps(int width,
+            int height) {
+        Dimension size = new Dimension(width, height);
+        if (reducedHeatmaps != null && size.equals(reducedSize)) {
+            List<BufferedImage> reduced = reducedHeatmaps.get();
+            if (reduced != null) {
+                return reduced;
+            }
+        }
+
+        List<BufferedImage> reduced = new ArrayList<BufferedImage>();
+        Collection<BufferedImage> full = heatmapsDecoded
+                ? heatmaps.values() : readHeatmaps().values();
+        for (BufferedImage heatmap : full) {
+            reduced.add(reduce(heatmap, width, height));
+        }
+        reduced = Collections.unmodifiableList(reduced);
+
+        reducedHeatmaps = new SoftReference<List<BufferedImage>>(reduced);
+        reducedSize = size;
+        return reduced;
+    }
+
+    private static BufferedImage reduce(BufferedImage heatmap, int width,
+            int height) {
+        int srcWidth = heatmap.getWidth();
+        int srcHeight = heatmap.getHeight();
+        int factor = Math.min(srcWidth / Math.max(width, 1),
+                srcHeight / Math.max(height, 1));
+        if (factor <= 1) {
+            return heatmap;
+        }
+
+        int w = srcWidth / factor;
+        int h = srcHeight / factor;
+        BufferedImage out = new BufferedImage(w, h,
+                BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster dest = out.getRaster();
+        Raster src = heatmap.getRaster();
+        boolean gray = heatmap.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        int[] row = new int[w * factor];
+        int[] sums = new int[w];
+        int area = factor * factor;
+
+        for (int y = 0; y < h; y++) {
+            Arrays.fill(sums, 0);
+            for (int sy = y * factor; sy < (y + 1) * factor; sy++) {
+                // average the intensities HeatmapOverlayConvertOp would
+                // read from the full heatmap
+                if (gray) {
+                    src.getSamples(0, sy, row.length, 1, 0, row);
+                    for (int x = 0; x < row.length; x++) {
+                        sums[x / factor] += HeatmapOverlayConvertOp
+                                .grayIntensity(row[x]);
+                    }
+                } else {
+                    heatmap.getRGB(0, sy, row.length, 1, row, 0, row.length);
+                    for (int x = 0; x < row.length; x++) {
+                        sums[x / factor] += row[x] & 0xff;
+                    }
+                }
+            }
+            for (int x = 0; x < w; x++) {
+                sums[x] = HeatmapOverlayConvertOp.graySample(
+                        sums[x] / area);
+            }
+            dest.setSamples(0, y, w, 1, 0, sums);
+        }
+        return out;
+    }
+
+    private synchronized Map<String, List<BoundingBox>> decodePatches() {
+        if (!patchesDecoded) {
+            for (String name : filterNames) {
+                byte[] data = getValue(getPatchAttributeName(name));
+                if (data != null) {
+                    patches.put(name, Collections.unmodifiableList(
+                            BoundingBox.fromPatchesList(data)));
+                }
+            }
+            patchesDecoded = true;
+        }
+        return patches;
+    }
+
+    private synchronized Map<String, BufferedImage> decodeHeatmaps() {
+        if (!heatmapsDecoded) {
+            heatmaps.putAll(readHeatmaps());
+            heatmapsDecoded = true;
+        }
+        return heatmaps;
+    }
+
+    private Map<String, BufferedImage> readHeatmaps() {
+        Map<String, BufferedImage> decoded =
+                new LinkedHashMap<String, BufferedImage>();
+        for (String name : filterNames) {
+            byte[] data = getValue(getHeatmapAttributeName(name));
+            if (data == null) {
+                continue;
+            }
+            try {
+                BufferedImage heatmap = ImageIO.read(
+                        new ByteArrayInputStream(data));
+                if (heatmap != null) {
+                    decoded.put(name, heatmap);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return decoded;
     }
 
     static Set<String> getPushAttributes(Collection<String> filterNames) {
@@ -114,7 +264,7 @@ public class ResultRegions {
         return attrs;
     }
 
-    private static String getPatchAttributeName(String filterName) {
+    static String getPatchAttributeName(String filterName) {
         return "_filter." + filterName + ".patches";
     }
 
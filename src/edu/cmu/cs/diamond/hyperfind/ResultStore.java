@@ -0,0 +1,209 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Append-only store for the attributes of search results, kept in
+ * memory-mapped temporary files outside the Java heap.  A search with tens
+ * of thousands of results would otherwise keep every thumbnail, score and
+ * patch list reachable from the result list, and each full collection
+ * would have to trace them all.
+ * <p>
+ * Each result is one record, addressed by a long: the segment index in the
+ * high 32 bits and the offset within the segment in the low 32 bits.  A
+ * record is an attribute count followed by (key id, length, value) triples;
+ * attribute names are interned into a per-store key table, so the records
+ * themselves hold no strings.  Records are never modified or freed; the
+ * mappings go away when the store and every result that refers to it are
+ * garbage.
+ */
+final class ResultStore {
+
+    private static final int SEGMENT_SIZE = Math.max(1,
+            Integer.getInteger("hyperfind.result-store-segment-mb", 64))
+            * 1024 * 1024;
+
+    // key name -> key id
+    private final ConcurrentMap<String, Integer> keyIds =
+            new ConcurrentHashMap<String, Integer>();
+
+    // key id -> key name, replaced when it grows
+    private volatile String[] keyNames = new String[0];
+
+    // replaced when it grows
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    // write position in the last segment
+    private int position;
+
+    private long bytes;
+
+    /**
+     * Appends a record and returns its address.
+     */
+    synchronized long append(Map<String, byte[]> attributes)
+            throws IOException {
+        int size = 4;
+        for (byte[] value : attributes.values()) {
+            size += 8 + value.length;
+        }
+
+        MappedByteBuffer[] segs = segments;
+        if (segs.length == 0 || segs[segs.length - 1].capacity()
+                - position < size) {
+            // oversized records get a segment of their own
+            segs = Arrays.copyOf(segs, segs.length + 1);
+            segs[segs.length - 1] = map(Math.max(size, SEGMENT_SIZE));
+            segments = segs;
+            position = 0;
+        }
+
+        int index = segs.length - 1;
+        int offset = position;
+        ByteBuffer buf = segs[index].duplicate();
+        buf.position(offset);
+        buf.putInt(attributes.size());
+        for (Map.Entry<String, byte[]> e : attributes.entrySet()) {
+            buf.putInt(keyId(e.getKey()));
+            buf.putInt(e.getValue().length);
+            buf.put(e.getValue());
+        }
+        position += size;
+        bytes += size;
+
+        return ((long) index << 32) | offset;
+    }
+
+    /**
+     * Returns a copy of the value, or null if the record has no such
+     * attribute.
+     */
+    byte[] getValue(long address, String key) {
+        Integer id = keyIds.get(key);
+        if (id == null) {
+            return null;
+        }
+        ByteBuffer buf = open(address);
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            int k = buf.getInt();
+            int length = buf.getInt();
+            if (k == id) {
+                byte[] value = new byte[length];
+                buf.get(value);
+                return value;
+            }
+            buf.position(buf.position() + length);
+        }
+        return null;
+    }
+
+    Set<String> getKeys(long address) {
+        String[] names = keyNames;
+        ByteBuffer buf = open(address);
+        int count = buf.getInt();
+        Set<String> keys = new HashSet<String>(count * 2);
+        for (int i = 0; i < count; i++) {
+            keys.add(names[buf.getInt()]);
+            int length = buf.getInt();
+            buf.position(buf.position() + length);
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
+    // bytes appended so far
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private ByteBuffer open(long address) {
+        ByteBuffer buf = segments[(int) (address >>> 32)].duplicate();
+        buf.position((int) address);
+        return buf;
+    }
+
+    // called with the lock held
+    private int keyId(String key) {
+        Integer id = keyIds.get(key);
+        if (id == null) {
+            String[] names = Arrays.copyOf(keyNames, keyNames.length + 1);
+            names[names.length - 1] = key;
+            // readers look up names by ids they found in a record, so the
+            // name must be visible before the id can be written
+            keyNames = names;
+            id = names.length - 1;
+            keyIds.put(key, id);
+        }
+        return id;
+    }
+
+    private static MappedByteBuffer map(int size) throws IOException {
+        File f = File.createTempFile("hyperfind-results-", ".seg");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(size);
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size);
+        } finally {
+            raf.close();
+            // where an open mapping keeps the file from being deleted,
+            // delete it when we exit
+            if (!f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Box;
+import javax.swing.DefaultComboBoxModel;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
+
+/**
+ * Threshold and sort controls for the filter scores of the results.  The
+ * results are filtered on the client, so moving the slider takes effect
+ * at once, without searching again.
+ */
+final class ScoreFilterPanel extends JPanel {
+
+    private static final String NO_FILTER = "All results";
+
+    private static final int STEPS = 1000;
+
+    private final ThumbnailBox results;
+
+    private final JComboBox filters = new JComboBox(
+            new DefaultComboBoxModel(new Object[] { NO_FILTER }));
+
+    private final JSlider slider = new JSlider(0, STEPS, 0);
+
+    private final JCheckBox sort = new JCheckBox("Best first");
+
+    private final JLabel thresholdLabel = new JLabel();
+
+    private final JLabel countLabel = new JLabel();
+
+    // scores the slider spans, fixed when the filter is chosen
+    private double min;
+
+    private double max;
+
+    // set while the filter list is refilled
+    private boolean updating;
+
+    ScoreFilterPanel(ThumbnailBox results) {
+        this.results = results;
+
+        Box box = Box.createHorizontalBox();
+        box.add(new JLabel("Score "));
+        box.add(filters);
+        box.add(Box.createHorizontalStrut(4));
+        box.add(slider);
+        box.add(thresholdLabel);
+        box.add(Box.createHorizontalStrut(4));
+        box.add(sort);
+        box.add(Box.createHorizontalStrut(4));
+        box.add(countLabel);
+        add(box);
+
+        // filters are only known once results arrive
+        filters.addPopupMenuListener(new PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                refreshFilters();
+            }
+
+            @Override
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+            }
+
+            @Override
+            public void popupMenuCanceled(PopupMenuEvent e) {
+            }
+        });
+        filters.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (!updating) {
+                    filterChanged();
+                }
+            }
+        });
+        slider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                apply();
+            }
+        });
+        sort.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                apply();
+            }
+        });
+        filterChanged();
+    }
+
+    // called on AWT thread as the list changes
+    void showCount(int shown, int total) {
+        countLabel.setText(shown == total ? ""
+                : shown + " of " + total + " shown");
+    }
+
+    private void refreshFilters() {
+        Object selected = filters.getSelectedItem();
+        updating = true;
+        try {
+            DefaultComboBoxModel model =
+                    (DefaultComboBoxModel) filters.getModel();
+            model.removeAllElements();
+            model.addElement(NO_FILTER);
+            for (String name : results.getScoredFilters()) {
+                model.addElement(name);
+            }
+            if (model.getIndexOf(selected) < 0) {
+                model.addElement(selected);
+            }
+            model.setSelectedItem(selected);
+        } finally {
+            updating = false;
+        }
+    }
+
+    private void filterChanged() {
+        String filter = getFilter();
+        double[] range = filter != null ? results.getScoreRange(filter)
+                : null;
+        if (range != null && range[0] < range[1]) {
+            min = range[0];
+            max = range[1];
+        } else {
+            min = 0;
+            max = 1;
+        }
+        slider.setEnabled(filter != null);
+        sort.setEnabled(filter != null);
+        if (slider.getValue() != 0) {
+            // apply() runs from the slider's listener
+            slider.setValue(0);
+        } else {
+            apply();
+        }
+    }
+
+    private void apply() {
+        String filter = getFilter();
+        if (filter == null) {
+            thresholdLabel.setText("");
+            results.setScoreView(null, Double.NEGATIVE_INFINITY, false);
+            return;
+        }
+        double threshold;
+        if (slider.getValue() == 0) {
+            // everything, including scores below the range seen so far
+            threshold = Double.NEGATIVE_INFINITY;
+            thresholdLabel.setText(" any");
+        } else {
+            threshold = min + (max - min) * slider.getValue() / STEPS;
+            thresholdLabel.setText(String.format(" >= %.3g", threshold));
+        }
+        results.setScoreView(filter, threshold, sort.isSelected());
+    }
+
+    // null if no filter is chosen
+    private String getFilter() {
+        Object selected = filters.getSelectedItem();
+        return NO_FILTER.equals(selected) ? null : (String) selected;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cmu.cs.diamond.opendiamond.Util;
+
+/**
+ * Filter scores of a result list, one primitive column per filter, so that
+ * the list can be thresholded and sorted by score without touching the
+ * results themselves.  Rows are results in arrival order; a missing or
+ * unreadable score is NaN.
+ * <p>
+ * Not thread safe; ResultListModel uses it on the AWT thread only.
+ */
+final class ScoreIndex {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Map<String, double[]> columns =
+            new LinkedHashMap<String, double[]>();
+
+    private int size;
+
+    private int capacity = INITIAL_CAPACITY;
+
+    static String getAttributeName(String filterName) {
+        return "_filter." + filterName + "_score";
+    }
+
+    static Set<String> getPushAttributes(Collection<String> filterNames) {
+        Set<String> attrs = new HashSet<String>();
+        for (String name : filterNames) {
+            attrs.add(getAttributeName(name));
+        }
+        return attrs;
+    }
+
+    // scores are sent as text
+    static double parseScore(byte[] value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(Util.extractString(value).trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // appends hr as the next row
+    void add(HyperFindResult hr) {
+        if (size == capacity) {
+            capacity *= 2;
+            for (Map.Entry<String, double[]> e : columns.entrySet()) {
+                e.setValue(grow(e.getValue()));
+            }
+        }
+        for (String name : hr.getActivePredicateSet().getFilterNames()) {
+            if (!columns.containsKey(name)) {
+                columns.put(name, grow(new double[0]));
+            }
+        }
+        for (Map.Entry<String, double[]> e : columns.entrySet()) {
+            e.getValue()[size] = parseScore(
+                    hr.getValue(getAttributeName(e.getKey())));
+        }
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // filters with a column, in the order they were first seen
+    List<String> getFilterNames() {
+        return Collections.unmodifiableList(
+                new ArrayList<String>(columns.keySet()));
+    }
+
+    double getScore(String filterName, int row) {
+        double[] column = columns.get(filterName);
+        return column != null ? column[row] : Double.NaN;
+    }
+
+    // {min, max} of the known scores of filterName, or null if none
+    double[] getRange(String filterName) {
+        double[] column = columns.get(filterName);
+        if (column == null) {
+            return null;
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            double d = column[i];
+            if (!Double.isNaN(d)) {
+                min = Math.min(min, d);
+                max = Math.max(max, d);
+            }
+        }
+        return min <= max ? new double[] { min, max } : null;
+    }
+
+    /*
+     * Rows whose score for filterName is at least threshold, in arrival
+     * order or, if sort is set, best score first.  Rows without a score
+     * cannot be judged, so they are kept, after the scored ones.  A null
+     * filterName selects every row.
+     */
+    int[] select(String filterName, double threshold, boolean sort) {
+        double[] column = filterName != null
+                ? columns.get(filterName) : null;
+        int[] rows = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (column == null || !(column[i] < threshold)) {
+                rows[count++] = i;
+            }
+        }
+        rows = Arrays.copyOf(rows, count);
+        if (sort && column != null) {
+            sort(rows, new int[count], 0, count, column);
+        }
+        return rows;
+    }
+
+    // true if score a is listed ahead of score b: higher first, NaN last
+    static boolean ranksBefore(double a, double b) {
+        if (Double.isNaN(a)) {
+            return false;
+        }
+        return Double.isNaN(b) || a > b;
+    }
+
+    // stable merge sort of rows[from, to) by ranksBefore()
+    private static void sort(int[] rows, int[] tmp, int from, int to,
+            double[] column) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(rows, tmp, from, mid, column);
+        sort(rows, tmp, mid, to, column);
+        if (!ranksBefore(column[rows[mid]], column[rows[mid - 1]])) {
+            // already in order
+            return;
+        }
+        System.arraycopy(rows, from, tmp, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid
+                    && !ranksBefore(column[tmp[j]], column[tmp[i]]))) {
+                rows[k] = tmp[i++];
+            } else {
+                rows[k] = tmp[j++];
+            }
+        }
+    }
+
+    private double[] grow(double[] column) {
+        double[] grown = Arrays.copyOf(column, capacity);
+        Arrays.fill(grown, column.length, capacity, Double.NaN);
+        return grown;
+    }
+}
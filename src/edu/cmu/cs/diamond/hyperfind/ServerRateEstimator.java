@@ -0,0 +1,314 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.cmu.cs.diamond.opendiamond.ServerStatistics;
+
+/**
+ * Turns successive polls of Search.getStatistics() into a per-server view:
+ * a smoothed search rate, the fraction of objects passing the filters, an
+ * ETA, and whether the server is lagging behind the others.
+ * <p>
+ * The rate is an exponentially weighted moving average with a time
+ * constant of hyperfind.rate-window-seconds, weighted by the time between
+ * polls so irregular polling does not skew it.  A server that has not made
+ * progress for hyperfind.stall-seconds is stalled; one running at less
+ * than half the median rate of the others is slow.  While the result
+ * pager is paused at a page boundary the servers are held back by us, so
+ * they are reported as paused and their rates are left as they were.
+ */
+final class ServerRateEstimator {
+
+    enum State {
+        WAITING("Waiting"), RUNNING("Running"), SLOW("Slow"),
+        STALLED("Stalled"), PAUSED("Paused"), DONE("Done");
+
+        private final String description;
+
+        private State(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    static final class ServerRate {
+        private final String server;
+
+        private final long total;
+
+        private final long processed;
+
+        private final long dropped;
+
+        private final double rate;
+
+        private final State state;
+
+        private ServerRate(String server, long total, long processed,
+                long dropped, double rate, State state) {
+            this.server = server;
+            this.total = total;
+            this.processed = processed;
+            this.dropped = dropped;
+            this.rate = rate;
+            this.state = state;
+        }
+
+        public String getServer() {
+            return server;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        // objects searched per second
+        public double getRate() {
+            return rate;
+        }
+
+        // fraction of searched objects that passed, or NaN if none yet
+        public double getPassRatio() {
+            return processed == 0 ? Double.NaN
+                    : (double) (processed - dropped) / processed;
+        }
+
+        // seconds until done at the current rate, or -1 if unknown
+        public long getEtaSeconds() {
+            return eta(total - processed, rate);
+        }
+
+        public State getState() {
+            return state;
+        }
+    }
+
+    // per-server running state
+    private static final class Estimate {
+        long processed;
+
+        long lastUpdate;
+
+        long lastProgress;
+
+        double rate;
+
+        boolean hasRate;
+    }
+
+    private static final double WINDOW_SECONDS = Math.max(1, Integer
+            .getInteger("hyperfind.rate-window-seconds", 10));
+
+    private static final long STALL_NANOS = Math.max(1, Integer.getInteger(
+            "hyperfind.stall-seconds", 15)) * 1000000000L;
+
+    private static final double SLOW_FRACTION = 0.5;
+
+    private final Map<String, Estimate> estimates =
+            new HashMap<String, Estimate>();
+
+    /**
+     * Feeds one poll of the statistics and returns the per-server view,
+     * sorted by server name.  paused is true if the result pager is
+     * holding the search back.
+     */
+    synchronized List<ServerRate> update(
+            Map<String, ServerStatistics> serverStats, boolean paused) {
+        long now = System.nanoTime();
+        Map<String, long[]> counts = new TreeMap<String, long[]>();
+        for (Map.Entry<String, ServerStatistics> e : serverStats.entrySet()) {
+            ServerStatistics ss = e.getValue();
+            Map<String, Long> map = ss.getServerStats();
+            counts.put(e.getKey(), new long[] {
+                    get(map, ss.TOTAL_OBJECTS),
+                    get(map, ss.PROCESSED_OBJECTS),
+                    get(map, ss.DROPPED_OBJECTS) });
+        }
+
+        List<Double> activeRates = new ArrayList<Double>();
+        for (Map.Entry<String, long[]> e : counts.entrySet()) {
+            long processed = e.getValue()[1];
+            Estimate est = estimates.get(e.getKey());
+            if (est == null) {
+                est = new Estimate();
+                est.processed = processed;
+                est.lastUpdate = now;
+                est.lastProgress = now;
+                estimates.put(e.getKey(), est);
+            } else if (paused) {
+                // not the server's fault; start the stall clock again on
+                // resume
+                est.processed = processed;
+                est.lastUpdate = now;
+                est.lastProgress = now;
+            } else if (now > est.lastUpdate) {
+                double dt = (now - est.lastUpdate) / 1e9;
+                double instant = Math.max(processed - est.processed, 0) / dt;
+                if (est.hasRate) {
+                    double alpha = 1 - Math.exp(-dt / WINDOW_SECONDS);
+                    est.rate += alpha * (instant - est.rate);
+                } else {
+                    est.rate = instant;
+                    est.hasRate = true;
+                }
+                if (processed != est.processed) {
+                    est.lastProgress = now;
+                }
+                est.processed = processed;
+                est.lastUpdate = now;
+            }
+            if (est.hasRate && !isDone(e.getValue())) {
+                activeRates.add(est.rate);
+            }
+        }
+        double median = median(activeRates);
+
+        List<ServerRate> rates = new ArrayList<ServerRate>(counts.size());
+        for (Map.Entry<String, long[]> e : counts.entrySet()) {
+            long[] c = e.getValue();
+            Estimate est = estimates.get(e.getKey());
+            State state;
+            if (isDone(c)) {
+                state = State.DONE;
+            } else if (paused) {
+                state = State.PAUSED;
+            } else if (!est.hasRate) {
+                state = State.WAITING;
+            } else if (now - est.lastProgress >= STALL_NANOS) {
+                state = State.STALLED;
+            } else if (activeRates.size() > 1
+                    && est.rate < SLOW_FRACTION * median) {
+                state = State.SLOW;
+            } else {
+                state = State.RUNNING;
+            }
+            rates.add(new ServerRate(e.getKey(), c[0], c[1], c[2],
+                    est.rate, state));
+        }
+        return Collections.unmodifiableList(rates);
+    }
+
+    synchronized void reset() {
+        estimates.clear();
+    }
+
+    /*
+     * Seconds until all servers are done, assuming they keep their
+     * current rates; -1 if unknown.
+     */
+    static long getEtaSeconds(List<ServerRate> rates) {
+        long eta = 0;
+        for (ServerRate r : rates) {
+            if (r.getState() == State.DONE) {
+                continue;
+            }
+            long e = r.getEtaSeconds();
+            if (e < 0) {
+                return -1;
+            }
+            // servers search in parallel, so the slowest one decides
+            eta = Math.max(eta, e);
+        }
+        return eta;
+    }
+
+    static String formatEta(long seconds) {
+        if (seconds < 0) {
+            return "unknown";
+        } else if (seconds < 60) {
+            return seconds + "s";
+        } else if (seconds < 3600) {
+            return String.format("%dm%02ds", seconds / 60, seconds % 60);
+        } else {
+            return String.format("%dh%02dm", seconds / 3600,
+                    (seconds / 60) % 60);
+        }
+    }
+
+    private static long eta(long remaining, double rate) {
+        if (remaining <= 0) {
+            return 0;
+        }
+        if (rate <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(remaining / rate);
+    }
+
+    private static boolean isDone(long[] counts) {
+        return counts[0] > 0 && counts[1] >= counts[0];
+    }
+
+    private static long get(Map<String, Long> map, String key) {
+        Long value = map.get(key);
+        return value != null ? value : 0;
+    }
+
+    private static double median(List<Double> values) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        List<Double> sorted = new ArrayList<Double>(values);
+        Collections.sort(sorted);
+        int n = sorted.size();
+        return n % 2 == 1 ? sorted.get(n / 2)
+                : (sorted.get(n / 2 - 1) + sorted.get(n / 2)) / 2;
+    }
+}
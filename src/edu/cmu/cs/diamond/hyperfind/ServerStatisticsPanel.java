@@ -0,0 +1,118 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+
+import edu.cmu.cs.diamond.hyperfind.ServerRateEstimator.ServerRate;
+
+/**
+ * Per-server breakdown of the search statistics, so that a straggling
+ * server is not hidden in the totals of the StatisticsBar.
+ */
+final class ServerStatisticsPanel extends JPanel {
+
+    private static final String[] COLUMNS = { "Server", "State", "Searched",
+            "Total", "Passed", "Objects/s", "ETA" };
+
+    private List<ServerRate> rates = Collections.emptyList();
+
+    private final AbstractTableModel tableModel = new AbstractTableModel() {
+        @Override
+        public int getRowCount() {
+            return rates.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            ServerRate r = rates.get(row);
+            switch (column) {
+            case 0:
+                return r.getServer();
+            case 1:
+                return r.getState();
+            case 2:
+                return r.getProcessed();
+            case 3:
+                return r.getTotal();
+            case 4:
+                double pass = r.getPassRatio();
+                return Double.isNaN(pass) ? ""
+                        : String.format("%.1f%%", 100 * pass);
+            case 5:
+                return String.format("%.1f", r.getRate());
+            default:
+                return ServerRateEstimator.formatEta(r.getEtaSeconds());
+            }
+        }
+    };
+
+    ServerStatisticsPanel() {
+        super(new BorderLayout());
+        JTable table = new JTable(tableModel);
+        table.setPreferredScrollableViewportSize(new Dimension(560, 160));
+        add(new JScrollPane(table));
+    }
+
+    // called on AWT thread
+    void update(List<ServerRate> rates) {
+        this.rates = rates;
+        tableModel.fireTableDataChanged();
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Everything needed to bring a session back after a restart: the codec and
+ * predicates with their options and examples, the results received so far
+ * and the markers on them.  Saved in a compact binary format; attribute
+ * names are stored once, and examples as PNG.
+ * <p>
+ * Snapshots are captured and restored on the AWT thread by Main, and read
+ * and written on any thread.
+ */
+final class SessionSnapshot {
+
+    private static final int MAGIC = 0x48465353; // "HFSS"
+
+    private static final int VERSION = 1;
+
+    static final class PredicateState {
+        final String bundleName;
+
+        // null for codecs
+        final String instanceName;
+
+        final boolean selected;
+
+        final Map<String, String> options;
+
+        // null if the predicate takes no examples
+        final List<BufferedImage> examples;
+
+        PredicateState(String bundleName, String instanceName,
+                boolean selected, Map<String, String> options,
+                List<BufferedImage> examples) {
+            this.bundleName = bundleName;
+            this.instanceName = instanceName;
+            this.selected = selected;
+            this.options = options;
+            this.examples = examples;
+        }
+
+        static PredicateState capture(HyperFindPredicate p,
+                boolean selected) {
+            List<BufferedImage> examples = p.getExamples();
+            return new PredicateState(p.getPredicateName(),
+                    p.getInstanceName(), selected,
+                    new HashMap<String, String>(p.getOptionMap()),
+                    examples == null ? null
+                            : new ArrayList<BufferedImage>(examples));
+        }
+    }
+
+    final PredicateState codec;
+
+    final List<PredicateState> predicates;
+
+    final List<HyperFindResult> results;
+
+    // marker name -> indices into results
+    final Map<String, Set<Integer>> markers;
+
+    SessionSnapshot(PredicateState codec, List<PredicateState> predicates,
+            List<HyperFindResult> results, Map<String, Set<Integer>> markers) {
+        this.codec = codec;
+        this.predicates = predicates;
+        this.results = results;
+        this.markers = markers;
+    }
+
+    /*
+     * Write to a temporary file first, so a failed save leaves any earlier
+     * snapshot intact.
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".part");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            writePredicate(out, codec);
+            out.writeInt(predicates.size());
+            for (PredicateState p : predicates) {
+                writePredicate(out, p);
+            }
+
+            // predicate sets shared by the results
+            Map<ActivePredicateSet, Integer> sets =
+                    new IdentityHashMap<ActivePredicateSet, Integer>();
+            List<ActivePredicateSet> setList =
+                    new ArrayList<ActivePredicateSet>();
+            // attribute names, stored once
+            Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+            for (HyperFindResult hr : results) {
+                ActivePredicateSet ps = hr.getActivePredicateSet();
+                if (!sets.containsKey(ps)) {
+                    sets.put(ps, sets.size());
+                    setList.add(ps);
+                }
+                for (String k : hr.getKeys()) {
+                    if (!keys.containsKey(k)) {
+                        keys.put(k, keys.size());
+                    }
+                }
+            }
+
+            out.writeInt(setList.size());
+            for (ActivePredicateSet ps : setList) {
+                writeString(out, ps.getSignature());
+                List<ActivePredicate> active = ps.getActivePredicates();
+                out.writeInt(active.size());
+                for (ActivePredicate a : active) {
+                    writeString(out, a.getPredicateName());
+                    writeString(out, a.getInstanceName());
+                    writeStrings(out, a.getFilterNames());
+                }
+            }
+
+            writeStrings(out, keys.keySet());
+            out.writeInt(results.size());
+            for (HyperFindResult hr : results) {
+                out.writeInt(sets.get(hr.getActivePredicateSet()));
+                writeString(out, hr.getName());
+                Set<String> resultKeys = hr.getKeys();
+                out.writeInt(resultKeys.size());
+                for (String k : resultKeys) {
+                    out.writeInt(keys.get(k));
+                    writeBytes(out, hr.getValue(k));
+                }
+            }
+
+            out.writeInt(markers.size());
+            for (Map.Entry<String, Set<Integer>> e : markers.entrySet()) {
+                writeString(out, e.getKey());
+                out.writeInt(e.getValue().size());
+                for (int index : e.getValue()) {
+                    out.writeInt(index);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /*
+     * Restored results are bound to main, so that they can be popped up.
+     */
+    static SessionSnapshot read(File file, Main main) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a HyperFind session");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported session version "
+                        + version);
+            }
+
+            PredicateState codec = readPredicate(in);
+            int count = in.readInt();
+            List<PredicateState> predicates =
+                    new ArrayList<PredicateState>(count);
+            for (int i = 0; i < count; i++) {
+                predicates.add(readPredicate(in));
+            }
+
+            count = in.readInt();
+            List<ActivePredicateSet> sets =
+                    new ArrayList<ActivePredicateSet>(count);
+            for (int i = 0; i < count; i++) {
+                String signature = readString(in);
+                int n = in.readInt();
+                List<ActivePredicate> active =
+                        new ArrayList<ActivePredicate>(n);
+                for (int j = 0; j < n; j++) {
+                    active.add(new ActivePredicate(readString(in),
+                            readString(in), readStrings(in)));
+                }
+                sets.add(ActivePredicateSet.restore(main, active,
+                        signature));
+            }
+
+            List<String> keys = readStrings(in);
+            ResultStore store = new ResultStore();
+            count = in.readInt();
+            List<HyperFindResult> results =
+                    new ArrayList<HyperFindResult>(count);
+            for (int i = 0; i < count; i++) {
+                ActivePredicateSet ps = sets.get(in.readInt());
+                String name = readString(in);
+                int n = in.readInt();
+                Map<String, byte[]> attributes =
+                        new HashMap<String, byte[]>(n * 2);
+                for (int j = 0; j < n; j++) {
+                    String k = keys.get(in.readInt());
+                    attributes.put(k, readBytes(in));
+                }
+                results.add(new HyperFindResult(ps, name, attributes,
+                        store));
+            }
+
+            count = in.readInt();
+            Map<String, Set<Integer>> markers =
+                    new LinkedHashMap<String, Set<Integer>>();
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                int n = in.readInt();
+                Set<Integer> indices = new TreeSet<Integer>();
+                for (int j = 0; j < n; j++) {
+                    int index = in.readInt();
+                    if (index >= 0 && index < results.size()) {
+                        indices.add(index);
+                    }
+                }
+                markers.put(name, indices);
+            }
+
+            return new SessionSnapshot(codec, predicates, results, markers);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt session file", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writePredicate(DataOutputStream out,
+            PredicateState p) throws IOException {
+        writeString(out, p.bundleName);
+        writeString(out, p.instanceName);
+        out.writeBoolean(p.selected);
+        out.writeInt(p.options.size());
+        for (Map.Entry<String, String> e : p.options.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+        if (p.examples == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(p.examples.size());
+            for (BufferedImage img : p.examples) {
+                writeBytes(out, BlobCache.getDefault().getBytes(img));
+            }
+        }
+    }
+
+    private static PredicateState readPredicate(DataInputStream in)
+            throws IOException {
+        String bundleName = readString(in);
+        String instanceName = readString(in);
+        boolean selected = in.readBoolean();
+        int count = in.readInt();
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            options.put(readString(in), readString(in));
+        }
+        count = in.readInt();
+        List<BufferedImage> examples = null;
+        if (count >= 0) {
+            examples = new ArrayList<BufferedImage>(count);
+            for (int i = 0; i < count; i++) {
+                examples.add(BlobCache.getDefault().decode(readBytes(in)));
+            }
+        }
+        return new PredicateState(bundleName, instanceName, selected,
+                options, examples);
+    }
+
+    // null-safe, and not limited to 64 KB like writeUTF()
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = readBytes(in);
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out,
+            Collection<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in)
+            throws IOException {
+        int count = in.readInt();
+        List<String> strings = new ArrayList<String>(Math.max(count, 0));
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return Collections.unmodifiableList(strings);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b)
+            throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+}
@@ -40,21 +40,58 @@
 
 package edu.cmu.cs.diamond.hyperfind;
 
+import java.awt.Window;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.swing.JDialog;
 import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
 
+import edu.cmu.cs.diamond.hyperfind.ServerRateEstimator.ServerRate;
+import edu.cmu.cs.diamond.hyperfind.ServerRateEstimator.State;
 import edu.cmu.cs.diamond.opendiamond.ServerStatistics;
 
 public class StatisticsBar extends JProgressBar {
+    private final ServerStatisticsPanel serverPanel =
+            new ServerStatisticsPanel();
+
+    private JDialog serverDialog;
+
+    // latest search update posted from another thread and not yet shown
+    private final AtomicReference<Runnable> pending =
+            new AtomicReference<Runnable>();
+
+    // the same for progress messages, so that neither kind replaces the
+    // other before it is shown
+    private final AtomicReference<Runnable> pendingProgress =
+            new AtomicReference<Runnable>();
+
+    // tasks reporting progress; search statistics do not replace their
+    // messages while there are any
+    private final AtomicInteger progressHolders = new AtomicInteger();
+
     public StatisticsBar() {
         super();
         setStringPainted(true);
+        setToolTipText("Click for per-server statistics");
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                showServerStatistics();
+            }
+        });
         clear();
     }
 
     public void clear() {
         setNumbers(0, 0, 0);
+        serverPanel.update(Collections.<ServerRate>emptyList());
     }
 
     private void setNumbers(long total, long searched, long dropped) {
@@ -81,6 +118,143 @@ public class StatisticsBar extends JProgressBar {
         setNumbers(t, s, d);
     }
 
+    /*
+     * Like update(Map), but also shows the ETA and any lagging servers,
+     * and refreshes the per-server view.
+     */
+    void update(Map<String, ServerStatistics> serverStats,
+            List<ServerRate> rates) {
+        update(serverStats);
+        serverPanel.update(rates);
+
+        int slow = 0;
+        int stalled = 0;
+        boolean paused = false;
+        for (ServerRate r : rates) {
+            if (r.getState() == State.SLOW) {
+                slow++;
+            } else if (r.getState() == State.STALLED) {
+                stalled++;
+            } else if (r.getState() == State.PAUSED) {
+                paused = true;
+            }
+        }
+        StringBuilder sb = new StringBuilder(getString());
+        long eta = ServerRateEstimator.getEtaSeconds(rates);
+        if (paused) {
+            sb.append(", paused until the next page");
+        } else if (eta > 0) {
+            sb.append(", ETA: " + ServerRateEstimator.formatEta(eta));
+        }
+        if (stalled > 0) {
+            sb.append(", " + stalled + " stalled");
+        }
+        if (slow > 0) {
+            sb.append(", " + slow + " slow");
+        }
+        setString(sb.toString());
+    }
+
+    /*
+     * The post methods may be called from any thread.  Updates are
+     * coalesced: if several are posted before the AWT thread gets to them,
+     * only the last one is shown.
+     */
+    void postUpdate(final Map<String, ServerStatistics> serverStats,
+            final List<ServerRate> rates) {
+        post(pending, new Runnable() {
+            @Override
+            public void run() {
+                if (progressHolders.get() > 0) {
+                    serverPanel.update(rates);
+                } else {
+                    update(serverStats, rates);
+                }
+            }
+        });
+    }
+
+    void postIndeterminateMessage(final String message) {
+        post(pending, new Runnable() {
+            @Override
+            public void run() {
+                if (progressHolders.get() == 0) {
+                    setIndeterminateMessage(message);
+                }
+            }
+        });
+    }
+
+    void postProgress(final String message, final long done,
+            final long total) {
+        post(pendingProgress, new Runnable() {
+            @Override
+            public void run() {
+                setProgress(message, done, total);
+            }
+        });
+    }
+
+    void postDone() {
+        post(pending, new Runnable() {
+            @Override
+            public void run() {
+                if (progressHolders.get() == 0) {
+                    setDone();
+                }
+            }
+        });
+    }
+
+    /*
+     * Keep search statistics from replacing progress messages until the
+     * matching releaseProgress().  Any thread.
+     */
+    void holdProgress() {
+        progressHolders.incrementAndGet();
+    }
+
+    void releaseProgress() {
+        progressHolders.decrementAndGet();
+    }
+
+    private void post(final AtomicReference<Runnable> slot,
+            Runnable update) {
+        if (slot.getAndSet(update) == null) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    Runnable r = slot.getAndSet(null);
+                    if (r != null) {
+                        r.run();
+                    }
+                }
+            });
+        }
+    }
+
+    private void showServerStatistics() {
+        if (serverDialog == null) {
+            Window owner = SwingUtilities.getWindowAncestor(this);
+            serverDialog = new JDialog(owner, "Server Statistics");
+            serverDialog.add(serverPanel);
+            serverDialog.pack();
+            serverDialog.setLocationRelativeTo(this);
+        }
+        serverDialog.setVisible(true);
+        serverDialog.toFront();
+    }
+
+    // a message over a bar showing done out of total
+    void setProgress(String message, long done, long total) {
+        setIndeterminate(false);
+        setString(message);
+        setMaximum(total > Integer.MAX_VALUE ?
+                Integer.MAX_VALUE : (int) total);
+        setValue(done > Integer.MAX_VALUE ?
+                Integer.MAX_VALUE : (int) done);
+    }
+
     public void setIndeterminateMessage(String message) {
         setIndeterminate(true);
         setString(message);
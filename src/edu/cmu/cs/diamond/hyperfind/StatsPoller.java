@@ -0,0 +1,126 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the statistics of one search on a thread shared by all searches.
+ * The poll reports whether anything changed since the last one: while it
+ * does, polls run every hyperfind.stats-min-ms; once the search goes idle
+ * or is paused waiting for the user, the interval doubles up to
+ * hyperfind.stats-max-ms, and drops back as soon as progress resumes.
+ */
+final class StatsPoller implements Runnable {
+
+    private static final long MIN_DELAY_MS = Math.max(10, Integer.getInteger(
+            "hyperfind.stats-min-ms", 250));
+
+    private static final long MAX_DELAY_MS = Math.max(MIN_DELAY_MS,
+            Integer.getInteger("hyperfind.stats-max-ms", 4000));
+
+    private static final ScheduledExecutorService EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hyperfind-stats");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // returns true if the statistics changed
+    private final Callable<Boolean> poll;
+
+    private long delay = MIN_DELAY_MS;
+
+    private ScheduledFuture<?> future;
+
+    private boolean stopped;
+
+    private StatsPoller(Callable<Boolean> poll) {
+        this.poll = poll;
+    }
+
+    // polls right away, then adaptively until stopped
+    static StatsPoller start(Callable<Boolean> poll) {
+        StatsPoller p = new StatsPoller(poll);
+        synchronized (p) {
+            p.future = EXECUTOR.schedule(p, 0, TimeUnit.MILLISECONDS);
+        }
+        return p;
+    }
+
+    @Override
+    public void run() {
+        boolean changed;
+        try {
+            changed = poll.call();
+        } catch (Exception e) {
+            e.printStackTrace();
+            changed = false;
+        }
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            delay = changed ? MIN_DELAY_MS
+                    : Math.min(2 * delay, MAX_DELAY_MS);
+            future = EXECUTOR.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * Stop polling.  A poll already running is not interrupted, since the
+     * thread is shared; it will not be rescheduled.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
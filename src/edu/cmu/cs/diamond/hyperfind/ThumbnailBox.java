@@ -43,23 +43,26 @@ package edu.cmu.cs.diamond.hyperfind;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
-import edu.cmu.cs.diamond.hyperfind.ResultIcon.ResultIconSetting;
+import edu.cmu.cs.diamond.hyperfind.ServerRateEstimator.ServerRate;
 import edu.cmu.cs.diamond.opendiamond.*;
 
 
@@ -71,19 +74,50 @@ import edu.cmu.cs.diamond.opendiamond.*;
 public class ThumbnailBox extends JPanel {
     private final int resultsPerScreen;
 
-    private static final ResultIcon PAUSE_RESULT = new ResultIcon(null, null,
-            null, null);
+    private static final ThumbnailRenderer RENDERER = new ThumbnailRenderer();
 
-    private static final HeatmapOverlayConvertOp HEATMAP_OVERLAY_OP =
-            new HeatmapOverlayConvertOp(new Color(0x8000ff00, true));
+    private static final PipelineMetrics METRICS =
+            PipelineMetrics.getInstance();
+
+    // number of threads decoding thumbnails and drawing regions
+    private static final int DECODE_THREADS = Integer.getInteger(
+            "hyperfind.decode-threads",
+            Runtime.getRuntime().availableProcessors());
+
+    // publish results as soon as they are decoded, rather than in the
+    // order they were received
+    private static final boolean UNORDERED_RESULTS = Boolean.getBoolean(
+            "hyperfind.unordered-results");
+
+    // bound on results fetched from the search but not yet published
+    private static final int MAX_RESULTS_IN_FLIGHT = 4 * DECODE_THREADS;
+
+    // results fetched past the end of the current page
+    private static final int READ_AHEAD = Integer.getInteger(
+            "hyperfind.read-ahead", 100);
+
+    // memory budget for results fetched past the end of the page
+    private static final long READ_AHEAD_BYTES = Integer.getInteger(
+            "hyperfind.read-ahead-mb", 32) * 1024L * 1024L;
+
+    // memory budget for decoded thumbnails
+    private static final long THUMBNAIL_CACHE_BYTES = Integer.getInteger(
+            "hyperfind.thumbnail-cache-mb", 64) * 1024L * 1024L;
+
+    private final ThumbnailCache thumbnails = new ThumbnailCache(RENDERER,
+            THUMBNAIL_CACHE_BYTES, DECODE_THREADS);
 
     private Search search;
 
+    private final ServerRateEstimator rateEstimator =
+            new ServerRateEstimator();
+
     final private StatisticsBar stats;
 
-    private ScheduledExecutorService timerExecutor;
+    private StatsPoller statsPoller;
 
-    private ScheduledFuture<?> statsTimerFuture;
+    // objects searched as of the last statistics poll
+    private volatile long lastSearched;
 
     private final JButton stopButton;
 
@@ -97,6 +131,23 @@ public class ThumbnailBox extends JPanel {
 
     private List<HyperFindSearchMonitor> searchMonitors;
 
+    // reevaluation of the current results, while one is running
+    private ResultReevaluator reevaluation;
+
+    // score view, carried over to the results of later searches
+    private String scoreFilter;
+
+    private double scoreThreshold = Double.NEGATIVE_INFINITY;
+
+    private boolean sortByScore;
+
+    private final ScoreFilterPanel scorePanel;
+
+    private boolean remapping;
+
+    private final List<ChangeListener> viewListeners =
+            new ArrayList<ChangeListener>();
+
     /**
      * @param stopButton
      * @param startButton
@@ -145,6 +196,8 @@ public class ThumbnailBox extends JPanel {
                 .setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
 
         panel.add(jsp);
+        scorePanel = new ScoreFilterPanel(this);
+        panel.add(scorePanel, BorderLayout.NORTH);
 
         // "Get Next xxx result" button
         moreResultsButton = new JButton("Get next " + resultsPerScreen
@@ -161,21 +214,20 @@ public class ThumbnailBox extends JPanel {
 
     }
 
-    private void startStatsTimer() {
-        timerExecutor = Executors.newSingleThreadScheduledExecutor();
-        statsTimerFuture = timerExecutor.scheduleWithFixedDelay(new Runnable() {
+    private void startStatsTimer(final Search s, final ResultPager pager) {
+        lastSearched = -1;
+        statsPoller = StatsPoller.start(new Callable<Boolean>() {
             @Override
-            public void run() {
+            public Boolean call() throws InterruptedException {
                 try {
-                    updateStats();
+                    return updateStats(s, pager);
                 } catch (IOException e) {
                     // This should also be encountered and handled by the
                     // worker thread, so there's no need to be noisy here
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                    return false;
                 }
             }
-        }, 0, 500, TimeUnit.MILLISECONDS);
+        });
     }
 
     // called on AWT thread
@@ -183,6 +235,9 @@ public class ThumbnailBox extends JPanel {
         if (workerFuture != null) {
             workerFuture.cancel(true);
         }
+        if (reevaluation != null) {
+            reevaluation.cancel();
+        }
     }
 
     public void terminate() {
@@ -196,20 +251,65 @@ public class ThumbnailBox extends JPanel {
     // called on AWT thread
     public void start(Search s, final ActivePredicateSet activePredicateSet,
             final List<HyperFindSearchMonitor> monitors) {
+        start(s, activePredicateSet, monitors, false);
+    }
+
+    /*
+     * If keepResults is set, the results already shown stay at the top of
+     * the list and the search skips the objects they came from.  Called on
+     * AWT thread.
+     */
+    public void start(Search s, final ActivePredicateSet activePredicateSet,
+            final List<HyperFindSearchMonitor> monitors,
+            boolean keepResults) {
         search = s;
         searchMonitors = monitors;
         startButton.setEnabled(false);
         stopButton.setEnabled(true);
 
-        startStatsTimer();
+        METRICS.reset();
+        rateEstimator.reset();
 
-        final DefaultListModel model = new DefaultListModel();
-        list.setModel(model);
+        List<ResultIcon> kept = new ArrayList<ResultIcon>();
+        final Set<String> seen = new HashSet<String>();
+        if (keepResults) {
+            for (ResultIcon icon : getIcons()) {
+                kept.add(icon);
+                seen.add(ResultExporter.objectKey(icon.getResult()));
+            }
+        }
+        final ResultListModel model = createModel(kept);
+
+        // kept results stay in the store of the search that found them
+        final ResultStore store = new ResultStore();
+
+        final ResultPager pager = new ResultPager(resultsPerScreen,
+                READ_AHEAD, READ_AHEAD_BYTES);
+        startStatsTimer(s, pager);
 
-        // the tricky pausing, try to make it better with local variables
-        final AtomicInteger resultsLeftBeforePause = new AtomicInteger(
-                resultsPerScreen);
-        final Semaphore pauseSemaphore = new Semaphore(0);
+        // monitors that use the Result keep every result on the heap
+        boolean usesResult = false;
+        for (HyperFindSearchMonitor m : monitors) {
+            usesResult |= m.usesResult();
+        }
+        final boolean keepOnHeap = usesResult;
+
+        // once the monitors are done with a result, move it off the heap
+        final MonitorDispatcher dispatcher = new MonitorDispatcher(monitors,
+                new MonitorDispatcher.Callback() {
+            @Override
+            public void delivered(HyperFindResult hr) {
+                if (keepOnHeap) {
+                    return;
+                }
+                try {
+                    hr.moveTo(store);
+                } catch (IOException e) {
+                    // keep it on the heap
+                    e.printStackTrace();
+                }
+            }
+        });
 
         for (ActionListener a : moreResultsButton.getActionListeners()) {
             moreResultsButton.removeActionListener(a);
@@ -217,121 +317,119 @@ public class ThumbnailBox extends JPanel {
         moreResultsButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                moreResultsButton.setVisible(false);
-                resultsLeftBeforePause.set(resultsPerScreen);
-                pauseSemaphore.release();
+                // show what was read ahead right away; the rest of the page
+                // streams in behind it
+                pager.nextPage(model);
+                moreResultsButton.setVisible(pager.isPageFull());
                 revalidate();
                 repaint();
             }
         });
 
-        workerFuture = new SwingWorker<Object, ResultIcon>() {
+        final ExecutorService decodeExecutor = Executors.newFixedThreadPool(
+                DECODE_THREADS);
+        final ExecutorService publishExecutor =
+                Executors.newSingleThreadExecutor();
+
+        final Runnable showMoreResultsButton = new Runnable() {
+            @Override
+            public void run() {
+                moreResultsButton.setVisible(true);
+                revalidate();
+                repaint();  // Repaint this Thumbnail box
+            }
+        };
+
+        workerFuture = new SwingWorker<Object, Void>() {
+            // decoded results waiting to be published, in publication order
+            private final BlockingQueue<Future<ResultIcon>> decoded =
+                    new LinkedBlockingQueue<Future<ResultIcon>>();
+
+            // results fetched from the search but not yet published
+            private final Semaphore inFlight = new Semaphore(
+                    MAX_RESULTS_IN_FLIGHT);
+
+            // in unordered mode, queues each future once it completes
+            private final CompletionService<ResultIcon> completion =
+                    new ExecutorCompletionService<ResultIcon>(
+                            decodeExecutor, decoded);
+
             @Override
             protected Object doInBackground() throws InterruptedException {
-                // non-AWT thread
+                // non-AWT thread: fetch results and hand them to the
+                // decode threads
+                Future<?> publisher = publishExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        publishDecoded();
+                    }
+                });
                 try {
                     try {
                         while (true) {
-                            if (resultsLeftBeforePause.getAndDecrement() == 0) {
-                                publish(PAUSE_RESULT);
-
-                                pauseSemaphore.acquire();
-                                continue;
-                            }
+                            pager.awaitFetch();
 
+                            long fetchStart = System.nanoTime();
                             Result r = search.getNextResult();
+                            METRICS.record(PipelineMetrics.Stage.FETCH,
+                                    System.nanoTime() - fetchStart);
                             if (r == null) {
                                 break;
                             }
-                            HyperFindResult hr = new HyperFindResult(
+                            final HyperFindResult hr = new HyperFindResult(
                                     activePredicateSet, r);
-
-                            for (HyperFindSearchMonitor m : searchMonitors) {
-                                m.notify(hr);
-                            }
-
-                            // System.out.println(r);
-
-                            byte[] thumbData = r.getValue("thumbnail.jpeg");
-                            BufferedImage thumb = null;
-                            if (thumbData != null) {
-                                ByteArrayInputStream in = new ByteArrayInputStream(
-                                        thumbData);
-                                try {
-                                    thumb = ImageIO.read(in);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                            if (thumb == null) {
-                                // cook up blank image
-                                thumb = new BufferedImage(200, 150,
-                                        BufferedImage.TYPE_INT_RGB);
+                            if (!seen.isEmpty() && seen.contains(
+                                    ResultExporter.objectKey(hr))) {
+                                // already shown
+                                pager.release();
+                                continue;
                             }
 
-                            // draw heatmaps and patches
-                            ResultRegions regions = hr.getRegions();
-                            Graphics2D g = thumb.createGraphics();
-                            g.setRenderingHint(
-                                    RenderingHints.KEY_INTERPOLATION,
-                                    RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-                            int origW = Util
-                                    .extractInt(r.getValue("_cols.int"));
-                            int origH = Util
-                                    .extractInt(r.getValue("_rows.int"));
-                            g.scale((double) thumb.getWidth() /
-                                    (double) origW,
-                                    (double) thumb.getHeight() /
-                                    (double) origH);
-                            for (BufferedImage heatmap :
-                                    regions.getHeatmaps()) {
-                                drawHeatmap(g, heatmap);
-                            }
-                            g.setColor(Color.GREEN);
-                            for (BoundingBox box : regions.getPatches()) {
-                                drawPatch(g, box);
-                            }
-                            g.dispose();
-
-                            // check setting from server
-                            ResultIconSetting d = ResultIconSetting.ICON_ONLY;
-                            byte[] tmp = r
-                                    .getValue("hyperfind.thumbnail-display");
-                            if (tmp != null) {
-                                String setting = Util.extractString(tmp);
-                                if (setting.equals("icon")) {
-                                    d = ResultIconSetting.ICON_ONLY;
-                                } else if (setting.equals("label")) {
-                                    d = ResultIconSetting.LABEL_ONLY;
-                                } else if (setting.equals("icon-and-label")) {
-                                    d = ResultIconSetting.ICON_AND_LABEL;
+                            inFlight.acquire();
+                            Callable<ResultIcon> task =
+                                    new Callable<ResultIcon>() {
+                                @Override
+                                public ResultIcon call() {
+                                    return RENDERER.createResultIcon(hr,
+                                            thumbnails);
                                 }
+                            };
+                            if (UNORDERED_RESULTS) {
+                                completion.submit(task);
+                            } else {
+                                decoded.put(decodeExecutor.submit(task));
                             }
-
-                            final ResultIcon resultIcon = new ResultIcon(
-                                    hr, r.getName(), new ImageIcon(thumb), d);
-
-                            publish(resultIcon);
                         }
+                        drain();
+
+                        // keep the search open until the results read
+                        // ahead have been shown
+                        pager.awaitDrained();
                     } finally {
                         // System.out.println("STOP");
+                        publisher.cancel(true);
+                        decodeExecutor.shutdownNow();
+                        publishExecutor.shutdownNow();
 
                         // update stats one more time, if possible
                         try {
-                            updateStats();
+                            updateStats(search, pager);
                         } catch (IOException e1) {
                             // swallow
                         } catch (InterruptedException e2) {
                             Thread.currentThread().interrupt();
                         }
 
-                        for (HyperFindSearchMonitor sm : searchMonitors) {
-                            sm.stopped();
-                        }
+                        dispatcher.close();
 
-                        SwingUtilities.invokeLater(new Runnable() {
+                        // after the last results are on screen
+                        model.invokeAfterPending(new Runnable() {
                             @Override
                             public void run() {
+                                if (statsPoller != null) {
+                                    statsPoller.stop();
+                                }
+
                                 if (search != null) {
                                     try {
                                         search.close();
@@ -341,18 +439,10 @@ public class ThumbnailBox extends JPanel {
                                     }
                                 }
 
-                                if (timerExecutor != null) {
-                                    timerExecutor.shutdownNow();
-                                }
-
-                                if (statsTimerFuture != null) {
-                                    statsTimerFuture.cancel(true);
-                                }
-
                                 startButton.setEnabled(true);
                                 stopButton.setEnabled(false);
                                 moreResultsButton.setVisible(false);
-                                stats.setDone();
+                                stats.postDone();
                             }
                         });
                     }
@@ -368,72 +458,508 @@ public class ThumbnailBox extends JPanel {
                 return null;
             }
 
-            @Override
-            protected void process(List<ResultIcon> chunks) {
-                // AWT thread
-                for (ResultIcon resultIcon : chunks) {
-                    if (resultIcon == PAUSE_RESULT) {
-                        moreResultsButton.setVisible(true);
-                        revalidate();
-                        repaint();  // Repaint this Thumbnail box
-                    } else {
-                        /* Add newly fetched search result to result list */
-                        model.addElement(resultIcon);
+            // wait until everything fetched so far has been published
+            private void drain() throws InterruptedException {
+                inFlight.acquire(MAX_RESULTS_IN_FLIGHT);
+                inFlight.release(MAX_RESULTS_IN_FLIGHT);
+            }
+
+            // runs on the publish thread
+            private void publishDecoded() {
+                try {
+                    while (true) {
+                        Future<ResultIcon> f = decoded.take();
+                        boolean admitting = false;
+                        try {
+                            ResultIcon resultIcon = f.get();
+                            long notifyStart = System.nanoTime();
+                            dispatcher.dispatch(resultIcon.getResult());
+                            METRICS.record(PipelineMetrics.Stage.NOTIFY,
+                                    System.nanoTime() - notifyStart);
+                            admitting = true;
+                            if (pager.admit(resultIcon, model)) {
+                                if (pager.isPageFull()) {
+                                    model.invokeAfterPending(
+                                            showMoreResultsButton);
+                                }
+                            }
+                        } catch (ExecutionException e) {
+                            e.printStackTrace();
+                        } catch (final RuntimeException e) {
+                            // a failing monitor must not stop the search
+                            e.printStackTrace();
+                            SwingUtilities.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    stats.showException(e);
+                                }
+                            });
+                        } finally {
+                            if (!admitting) {
+                                // failed; its fetch slot is not used up
+                                pager.release();
+                            }
+                            inFlight.release();
+                        }
                     }
+                } catch (InterruptedException e) {
+                    // search is over
                 }
             }
         };
         workerFuture.execute();
     }
 
-    private void drawHeatmap(Graphics2D g, BufferedImage heatmap) {
-        g.drawImage(heatmap, HEATMAP_OVERLAY_OP, 0, 0);
+    /*
+     * Results received so far, including any hidden by the score view, in
+     * arrival order.  Marker selections index this list.  Called on AWT
+     * thread.
+     */
+    public List<HyperFindResult> getResults() {
+        List<ResultIcon> icons = getIcons();
+        List<HyperFindResult> results = new ArrayList<HyperFindResult>(
+                icons.size());
+        for (ResultIcon icon : icons) {
+            results.add(icon.getResult());
+        }
+        return results;
     }
 
-    private void drawPatch(Graphics2D g, BoundingBox box) {
-        int x0 = box.getX0();
-        int y0 = box.getY0();
-        int x1 = box.getX1();
-        int y1 = box.getY1();
-        Rectangle r = new Rectangle(x0, y0, x1 - x0, y1 - y0);
-        g.draw(r);
+    // icon of getResults().get(resultIndex); called on AWT thread
+    public ResultIcon getResultIcon(int resultIndex) {
+        return getIcons().get(resultIndex);
     }
 
-    private void updateStats() throws IOException, InterruptedException {
-        try {
-            final Map<String, ServerStatistics> serverStats = search
-                    .getStatistics();
+    // called on AWT thread
+    private List<ResultIcon> getIcons() {
+        ListModel model = list.getModel();
+        if (model instanceof ResultListModel) {
+            return ((ResultListModel) model).getAllElements();
+        }
+        // nothing searched yet
+        List<ResultIcon> icons = new ArrayList<ResultIcon>();
+        for (int i = 0; i < model.getSize(); i++) {
+            icons.add((ResultIcon) model.getElementAt(i));
+        }
+        return icons;
+    }
 
-            boolean hasStats = false;
-            for (ServerStatistics s : serverStats.values()) {
-                if (s.getServerStats().get(s.TOTAL_OBJECTS) != 0) {
-                    hasStats = true;
-                    break;
+    /*
+     * Show only results scoring at least threshold on filterName, best
+     * first if sort is set, or every result if filterName is null.  Kept
+     * for later searches.  Called on AWT thread.
+     */
+    public void setScoreView(String filterName, double threshold,
+            boolean sort) {
+        scoreFilter = filterName;
+        scoreThreshold = threshold;
+        sortByScore = sort;
+        ListModel model = list.getModel();
+        if (model instanceof ResultListModel) {
+            ((ResultListModel) model).setScoreView(filterName, threshold,
+                    sort);
+        }
+    }
+
+    // filters the current results have scores for; called on AWT thread
+    public List<String> getScoredFilters() {
+        ListModel model = list.getModel();
+        if (model instanceof ResultListModel) {
+            return ((ResultListModel) model).getScores().getFilterNames();
+        }
+        return Collections.emptyList();
+    }
+
+    // {min, max} score of filterName, or null; called on AWT thread
+    public double[] getScoreRange(String filterName) {
+        ListModel model = list.getModel();
+        if (model instanceof ResultListModel) {
+            return ((ResultListModel) model).getScores().getRange(
+                    filterName);
+        }
+        return null;
+    }
+
+    // list index -> index into getResults(); called on AWT thread
+    public int getResultIndex(int index) {
+        ListModel model = list.getModel();
+        if (model instanceof ResultListModel) {
+            return ((ResultListModel) model).getResultIndex(index);
+        }
+        return index;
+    }
+
+    // index into getResults() -> list index, or -1 if hidden
+    public int getViewIndex(int resultIndex) {
+        ListModel model = list.getModel();
+        if (model instanceof ResultListModel) {
+            return ((ResultListModel) model).getViewIndex(resultIndex);
+        }
+        return resultIndex < model.getSize() ? resultIndex : -1;
+    }
+
+    /*
+     * See ResultListModel.isChangingView(); also true while refine()
+     * swaps in the narrowed list.
+     */
+    public boolean isChangingView() {
+        if (remapping) {
+            return true;
+        }
+        ListModel model = list.getModel();
+        return model instanceof ResultListModel
+                && ((ResultListModel) model).isChangingView();
+    }
+
+    /*
+     * l is told on the AWT thread whenever the score view is rebuilt, or
+     * the list is replaced; list selections are stale then.
+     */
+    public void addViewListener(ChangeListener l) {
+        viewListeners.add(l);
+    }
+
+    /*
+     * Show results restored from a session snapshot, replacing the current
+     * ones.  Called on AWT thread while no search is running.
+     */
+    public void restore(List<HyperFindResult> results) {
+        terminate();
+        searchMonitors = Collections.emptyList();
+        List<ResultIcon> icons = new ArrayList<ResultIcon>(results.size());
+        for (HyperFindResult hr : results) {
+            icons.add(RENDERER.createResultIcon(hr, thumbnails));
+        }
+        createModel(icons);
+        moreResultsButton.setVisible(false);
+        stats.clear();
+    }
+
+    // told on the AWT thread when refine() replaces the list
+    interface RefineListener {
+        /*
+         * newIndices maps each index into the old getResults() to its
+         * index in the new one, or -1 if the result was dropped.
+         */
+        void refined(int[] newIndices);
+    }
+
+    /*
+     * Narrow the current results down to those that pass the filters of
+     * ps, reevaluating each object rather than searching the scope again.
+     * The list is replaced, in its original order, once every object has
+     * been checked; stopping leaves it as it was.  Called on AWT thread
+     * while no search is running.
+     */
+    public void refine(final ActivePredicateSet ps,
+            final ResultReevaluator evaluator,
+            final RefineListener refineListener) {
+        final List<HyperFindResult> current = getResults();
+        terminate();
+        searchMonitors = Collections.emptyList();
+        reevaluation = evaluator;
+        startButton.setEnabled(false);
+        stopButton.setEnabled(true);
+        moreResultsButton.setVisible(false);
+
+        final int total = current.size();
+        final ResultStore store = new ResultStore();
+        final HyperFindResult[] kept = new HyperFindResult[total];
+        final AtomicInteger checked = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        stats.holdProgress();
+        stats.setProgress("Refining: 0 of " + total, 0, total);
+
+        evaluator.start(current, new ResultReevaluator.Listener() {
+            @Override
+            public void evaluated(int index, HyperFindResult hr, Result r) {
+                if (r != null) {
+                    try {
+                        kept[index] = new HyperFindResult(ps, hr, r, store);
+                    } catch (IOException e) {
+                        failed(index, hr, e);
+                        return;
+                    }
                 }
+                progress();
             }
-            if (hasStats) {
+
+            @Override
+            public void failed(int index, HyperFindResult hr,
+                    IOException e) {
+                // could not be checked, so cannot be shown as passing
+                e.printStackTrace();
+                failed.incrementAndGet();
+                progress();
+            }
+
+            private void progress() {
+                int n = checked.incrementAndGet();
+                if (evaluator.isCancelled()) {
+                    return;
+                }
+                stats.postProgress("Refining: " + n + " of " + total, n,
+                        total);
+            }
+
+            @Override
+            public void finished(final boolean cancelled) {
                 SwingUtilities.invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        stats.update(serverStats);
+                        stats.releaseProgress();
+                        reevaluation = null;
+                        startButton.setEnabled(true);
+                        stopButton.setEnabled(false);
+                        if (cancelled) {
+                            stats.postProgress("Refinement stopped", 0,
+                                    total);
+                            return;
+                        }
+                        List<ResultIcon> icons = new ArrayList<ResultIcon>();
+                        int[] newIndices = new int[total];
+                        for (int i = 0; i < total; i++) {
+                            HyperFindResult hr = kept[i];
+                            if (hr != null) {
+                                newIndices[i] = icons.size();
+                                icons.add(RENDERER.createResultIcon(hr,
+                                        thumbnails));
+                            } else {
+                                newIndices[i] = -1;
+                            }
+                        }
+                        // before the new list announces itself
+                        refineListener.refined(newIndices);
+                        // selections cleared by the swap are not unmarks
+                        remapping = true;
+                        ResultListModel model;
+                        try {
+                            model = createModel(icons);
+                        } finally {
+                            remapping = false;
+                        }
+                        // now the selection may follow the markers again
+                        fireViewChanged(model);
+                        String message = "Refined: kept " + icons.size()
+                                + " of " + total;
+                        if (failed.get() > 0) {
+                            message += ", " + failed.get()
+                                    + " could not be checked";
+                        }
+                        stats.postProgress(message, icons.size(), total);
                     }
                 });
-            } else {
+            }
+        });
+    }
+
+    /*
+     * Check the results at indices (all of them if null) against a single
+     * predicate, marking each icon with its verdict and with the regions
+     * the predicate found, as the verdicts come in.  The list itself is
+     * left alone.  Called on AWT thread while no search is running.
+     */
+    public void testPredicate(final String name, Collection<Integer> indices,
+            final List<String> filterNames,
+            final ResultReevaluator evaluator) {
+        List<ResultIcon> all = getIcons();
+        final List<ResultIcon> icons = new ArrayList<ResultIcon>();
+        for (int i = 0; i < all.size(); i++) {
+            ResultIcon icon = all.get(i);
+            if (icon.getVerdict() != ResultIcon.Verdict.NONE) {
+                icon.setVerdict(ResultIcon.Verdict.NONE, null);
+                thumbnails.invalidate(icon);
+            }
+            if (indices == null || indices.contains(i)) {
+                icons.add(icon);
+            }
+        }
+        list.repaint();
+        List<HyperFindResult> results = new ArrayList<HyperFindResult>(
+                icons.size());
+        for (ResultIcon icon : icons) {
+            results.add(icon.getResult());
+        }
+
+        reevaluation = evaluator;
+        startButton.setEnabled(false);
+        stopButton.setEnabled(true);
+
+        final int total = icons.size();
+        final AtomicInteger checked = new AtomicInteger();
+        final AtomicInteger passed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        stats.holdProgress();
+        stats.setProgress("Testing " + name + ": 0 of " + total, 0, total);
+
+        evaluator.start(results, new ResultReevaluator.Listener() {
+            @Override
+            public void evaluated(int index, HyperFindResult hr, Result r) {
+                if (r != null) {
+                    passed.incrementAndGet();
+                    verdict(index, ResultIcon.Verdict.PASSED,
+                            new ResultRegions(filterNames, r));
+                } else {
+                    verdict(index, ResultIcon.Verdict.DROPPED, null);
+                }
+            }
+
+            @Override
+            public void failed(int index, HyperFindResult hr,
+                    IOException e) {
+                e.printStackTrace();
+                failed.incrementAndGet();
+                verdict(index, ResultIcon.Verdict.FAILED, null);
+            }
+
+            private void verdict(int index, ResultIcon.Verdict v,
+                    ResultRegions regions) {
+                ResultIcon icon = icons.get(index);
+                icon.setVerdict(v, regions);
+                thumbnails.invalidate(icon);
+                // repaint() is safe on any thread
+                list.repaint();
+                int n = checked.incrementAndGet();
+                if (evaluator.isCancelled()) {
+                    return;
+                }
+                stats.postProgress("Testing " + name + ": " + n + " of "
+                        + total, n, total);
+            }
+
+            @Override
+            public void finished(final boolean cancelled) {
                 SwingUtilities.invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        stats
-                                .setIndeterminateMessage("Waiting for First Results");
+                        stats.releaseProgress();
+                        reevaluation = null;
+                        startButton.setEnabled(true);
+                        stopButton.setEnabled(false);
+                        int n = checked.get();
+                        String message = (cancelled ? "Stopped testing "
+                                : "Tested ") + name + ": " + passed.get()
+                                + " passed, "
+                                + (n - passed.get() - failed.get())
+                                + " dropped";
+                        if (failed.get() > 0) {
+                            message += ", " + failed.get()
+                                    + " could not be checked";
+                        }
+                        stats.postProgress(message, n, total);
                     }
                 });
             }
-        } catch (SearchClosedException ignore) {
-            SwingUtilities.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    stats.setDone();
+        });
+    }
+
+    // whether a search, refinement or test could be started now
+    public boolean isIdle() {
+        return startButton.isEnabled();
+    }
+
+    // called on AWT thread
+    private ResultListModel createModel(List<ResultIcon> initial) {
+        final ResultListModel model = new ResultListModel(initial);
+        // measured once each, even if the score view hides them for now
+        model.setArrivalListener(new ResultListModel.ArrivalListener() {
+            @Override
+            public void arrived(ResultIcon icon) {
+                growCellSize(icon);
+            }
+        });
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                showCount();
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                showCount();
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                showCount();
+            }
+
+            private void showCount() {
+                scorePanel.showCount(model.getSize(),
+                        model.getAllElements().size());
+            }
+        });
+        model.setScoreView(scoreFilter, scoreThreshold, sortByScore);
+        for (ChangeListener l : viewListeners) {
+            model.addChangeListener(l);
+        }
+        list.setModel(model);
+        thumbnails.clear();
+
+        // cells are laid out on a uniform grid anyway; fixing the cell size
+        // keeps the list from measuring every result on each update
+        list.setFixedCellWidth(-1);
+        list.setFixedCellHeight(-1);
+        for (ResultIcon icon : initial) {
+            growCellSize(icon);
+        }
+        fireViewChanged(model);
+        return model;
+    }
+
+    private void fireViewChanged(ResultListModel model) {
+        ChangeEvent e = new ChangeEvent(model);
+        for (ChangeListener l : viewListeners) {
+            l.stateChanged(e);
+        }
+    }
+
+    // called on AWT thread
+    private void growCellSize(ResultIcon resultIcon) {
+        Dimension d = list.getCellRenderer().getListCellRendererComponent(
+                list, resultIcon, -1, false, false).getPreferredSize();
+        if (d.width > list.getFixedCellWidth()) {
+            list.setFixedCellWidth(d.width);
+        }
+        if (d.height > list.getFixedCellHeight()) {
+            list.setFixedCellHeight(d.height);
+        }
+    }
+
+    /*
+     * Polls the statistics of s and posts them to the statistics bar.
+     * Returns true if more objects have been searched since the last poll,
+     * or if the servers have not reported yet.
+     */
+    private boolean updateStats(Search s, ResultPager pager)
+            throws IOException, InterruptedException {
+        try {
+            final Map<String, ServerStatistics> serverStats = s
+                    .getStatistics();
+            final List<ServerRate> rates = rateEstimator.update(serverStats,
+                    pager.isPaused());
+            METRICS.updateServers(rates);
+
+            boolean hasStats = false;
+            long searched = 0;
+            for (ServerRate r : rates) {
+                if (r.getTotal() != 0) {
+                    hasStats = true;
                 }
-            });
+                searched += r.getProcessed();
+            }
+            if (hasStats) {
+                stats.postUpdate(serverStats, rates);
+            } else {
+                stats.postIndeterminateMessage("Waiting for First Results");
+            }
+
+            boolean changed = searched != lastSearched;
+            lastSearched = searched;
+            return changed || !hasStats;
+        } catch (SearchClosedException ignore) {
+            stats.postDone();
+            return false;
         }
     }
 }
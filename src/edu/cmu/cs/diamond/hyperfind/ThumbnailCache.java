@@ -0,0 +1,280 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JList;
+import javax.swing.SwingUtilities;
+
+/**
+ * LRU cache of decoded thumbnails, bounded by the number of bytes of pixel
+ * data it holds.  Misses are decoded in the background and the component
+ * that asked for the thumbnail is repainted once it is available.
+ * Decodes are served newest request first; once more than
+ * hyperfind.thumbnail-queue of them are waiting, the oldest is dropped and
+ * its component repainted, which asks for it again only if it is still
+ * on screen.
+ */
+final class ThumbnailCache {
+
+    private static final int MAX_QUEUED = Math.max(1, Integer.getInteger(
+            "hyperfind.thumbnail-queue", 256));
+
+    private final ThumbnailRenderer renderer;
+
+    private final long maxBytes;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int threads;
+
+    // cached in place of a thumbnail that could not be rendered, so that
+    // it is not rendered again on every paint
+    private static final BufferedImage FAILED = new BufferedImage(1, 1,
+            BufferedImage.TYPE_BYTE_GRAY);
+
+    // access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<ResultIcon, BufferedImage> images =
+            new LinkedHashMap<ResultIcon, BufferedImage>(16, 0.75f, true);
+
+    // a decode in progress
+    private static final class Load {
+        // components to repaint afterward
+        final Set<Component> waiting = new HashSet<Component>();
+
+        // set if the icon was invalidated or the cache cleared meanwhile,
+        // so that the image may be out of date
+        boolean stale;
+    }
+
+    private final Map<ResultIcon, Load> pending =
+            new HashMap<ResultIcon, Load>();
+
+    // pending icons not yet being decoded, most recently requested first
+    private final Deque<ResultIcon> queued = new ArrayDeque<ResultIcon>();
+
+    // tasks draining queued
+    private int workers;
+
+    private long bytes;
+
+    public ThumbnailCache(ThumbnailRenderer renderer, long maxBytes,
+            int threads) {
+        this.renderer = renderer;
+        this.maxBytes = maxBytes;
+        this.threads = threads;
+        executor = new ThreadPoolExecutor(threads, threads, 1,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /*
+     * Returns the decoded thumbnail, or null if it is not cached.  In that
+     * case a decode is started and requester is repainted when it finishes.
+     */
+    public synchronized BufferedImage get(final ResultIcon icon,
+            Component requester) {
+        BufferedImage img = images.get(icon);
+        if (img == FAILED) {
+            // until invalidated
+            return null;
+        } else if (img != null) {
+            return img;
+        }
+
+        Load load = pending.get(icon);
+        if (load == null) {
+            load = new Load();
+            pending.put(icon, load);
+            queued.addFirst(icon);
+            if (queued.size() > MAX_QUEUED) {
+                drop(queued.removeLast());
+            }
+            if (workers < threads) {
+                workers++;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            }
+        } else if (queued.remove(icon)) {
+            // still wanted; serve it before the older requests
+            queued.addFirst(icon);
+        }
+        if (requester != null) {
+            // cell renderers are not in the component hierarchy for long;
+            // repaint the list they were painting instead
+            Component list = SwingUtilities.getAncestorOfClass(JList.class,
+                    requester);
+            load.waiting.add(list != null ? list : requester);
+        }
+        return null;
+    }
+
+    // drop the thumbnail of icon, so that it is rendered again
+    public synchronized void invalidate(ResultIcon icon) {
+        BufferedImage img = images.remove(icon);
+        if (img != null) {
+            bytes -= sizeOf(img);
+        }
+        Load load = pending.remove(icon);
+        if (load != null) {
+            load.stale = true;
+        }
+        queued.remove(icon);
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        bytes = 0;
+        for (Load load : pending.values()) {
+            load.stale = true;
+        }
+        pending.clear();
+        queued.clear();
+    }
+
+    // decode queued icons, most recently requested first, until none are
+    // left
+    private void drain() {
+        boolean idle = false;
+        try {
+            while (true) {
+                ResultIcon icon;
+                Load load;
+                synchronized (this) {
+                    icon = queued.pollFirst();
+                    if (icon == null) {
+                        // under the lock, so get() starts a new task for
+                        // the next request
+                        idle = true;
+                        workers--;
+                        return;
+                    }
+                    load = pending.get(icon);
+                }
+                load(icon, load);
+            }
+        } finally {
+            if (!idle) {
+                synchronized (this) {
+                    workers--;
+                }
+            }
+        }
+    }
+
+    /*
+     * Forget a queued decode.  The components that asked for it are
+     * repainted, and ask again if the icon is still visible.
+     */
+    private void drop(ResultIcon icon) {
+        Load load = pending.remove(icon);
+        repaint(load.waiting);
+    }
+
+    private void load(ResultIcon icon, final Load load) {
+        BufferedImage img;
+        try {
+            img = renderer.renderThumbnail(icon);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            img = null;
+        }
+        if (img == null) {
+            img = FAILED;
+        }
+        synchronized (this) {
+            if (pending.get(icon) == load) {
+                pending.remove(icon);
+            }
+            if (!load.stale) {
+                images.put(icon, img);
+                bytes += sizeOf(img);
+                evict();
+            }
+            // a stale image is dropped, and the repaint asks for a new one
+            repaint(load.waiting);
+        }
+    }
+
+    // called with the lock held
+    private void repaint(Set<Component> components) {
+        final Set<Component> waiting = new HashSet<Component>(components);
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                for (Component c : waiting) {
+                    c.repaint();
+                }
+            }
+        });
+    }
+
+    // always keep the most recent image, even if it is over budget
+    private void evict() {
+        Iterator<BufferedImage> it = images.values().iterator();
+        while (bytes > maxBytes && images.size() > 1) {
+            bytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(BufferedImage img) {
+        long pixelBits = img.getColorModel().getPixelSize();
+        return (long) img.getWidth() * img.getHeight() * pixelBits / 8;
+    }
+}
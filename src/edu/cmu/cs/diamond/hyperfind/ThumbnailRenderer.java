@@ -0,0 +1,227 @@
+/*
+ *  HyperFind, a search application for the OpenDiamond platform
+ *
+ *  Copyright (c) 2014 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  HyperFind is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  HyperFind is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with HyperFind. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking HyperFind statically or dynamically with other modules is
+ *  making a combined work based on HyperFind. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ * 
+ *  In addition, as a special exception, the copyright holders of
+ *  HyperFind give you permission to combine HyperFind with free software
+ *  programs or libraries that are released under the GNU LGPL, the
+ *  Eclipse Public License 1.0, or the Apache License 2.0. You may copy and
+ *  distribute such a system following the terms of the GNU GPL for
+ *  HyperFind and the licenses of the other code concerned, provided that
+ *  you include the source code of that other code when and as the GNU GPL
+ *  requires distribution of source code.
+ *
+ *  Note that people who make modified versions of HyperFind are not
+ *  obligated to grant this special exception for their modified versions;
+ *  it is their choice whether to do so. The GNU General Public License
+ *  gives permission to release a modified version without this exception;
+ *  this exception also makes it possible to release a modified version
+ *  which carries forward this exception.
+ */
+
+package edu.cmu.cs.diamond.hyperfind;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import edu.cmu.cs.diamond.hyperfind.ResultIcon.ResultIconSetting;
+import edu.cmu.cs.diamond.opendiamond.Util;
+
+/**
+ * Turns a search result into the ResultIcon shown in the ThumbnailBox, and
+ * renders its thumbnail on demand: decodes the JPEG and draws heatmaps and
+ * patches over it.  Stateless, so a single instance may be shared by several
+ * decode threads.
+ */
+final class ThumbnailRenderer {
+
+    private static final HeatmapOverlayConvertOp HEATMAP_OVERLAY_OP =
+            new HeatmapOverlayConvertOp(new Color(0x8000ff00, true));
+
+    // regions of a predicate tested on the results
+    private static final Color TEST_COLOR = Color.ORANGE;
+
+    private static final HeatmapOverlayConvertOp TEST_HEATMAP_OVERLAY_OP =
+            new HeatmapOverlayConvertOp(new Color(0x80ffa500, true));
+
+    private static final PipelineMetrics METRICS =
+            PipelineMetrics.getInstance();
+
+    private static final Dimension BLANK_SIZE = new Dimension(200, 150);
+
+    // reads only the image header, so is cheap enough to call on ingest
+    public ResultIcon createResultIcon(HyperFindResult hr,
+            ThumbnailCache cache) {
+        Dimension size = null;
+        byte[] thumbData = hr.getValue("thumbnail.jpeg");
+        if (thumbData != null) {
+            try {
+                size = readSize(thumbData);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (size == null) {
+            size = BLANK_SIZE;
+        }
+
+        return new ResultIcon(hr, hr.getName(), size, cache,
+                getDisplaySetting(hr));
+    }
+
+    /*
+     * Like renderThumbnail(HyperFindResult), plus the regions found by the
+     * last predicate tested on the icon, in a color of their own.
+     */
+    public BufferedImage renderThumbnail(ResultIcon icon) {
+        HyperFindResult hr = icon.getResult();
+        BufferedImage thumb = renderThumbnail(hr);
+        ResultRegions test = icon.getTestRegions();
+        if (test == null) {
+            return thumb;
+        }
+        for (BufferedImage heatmap : test.getReducedHeatmaps(
+                thumb.getWidth(), thumb.getHeight())) {
+            TEST_HEATMAP_OVERLAY_OP.composite(heatmap, thumb);
+        }
+        Graphics2D g = thumb.createGraphics();
+        scaleToOriginal(g, hr, thumb);
+        g.setColor(TEST_COLOR);
+        for (BoundingBox box : test.getPatches()) {
+            drawPatch(g, box);
+        }
+        g.dispose();
+        return thumb;
+    }
+
+    public BufferedImage renderThumbnail(HyperFindResult hr) {
+        byte[] thumbData = hr.getValue("thumbnail.jpeg");
+        BufferedImage thumb = null;
+        if (thumbData != null) {
+            long start = System.nanoTime();
+            ByteArrayInputStream in = new ByteArrayInputStream(thumbData);
+            try {
+                thumb = ImageIO.read(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            METRICS.record(PipelineMetrics.Stage.DECODE,
+                    System.nanoTime() - start);
+        }
+        if (thumb == null) {
+            // cook up blank image
+            thumb = new BufferedImage(BLANK_SIZE.width, BLANK_SIZE.height,
+                    BufferedImage.TYPE_INT_RGB);
+        }
+
+        // blend heatmaps, reduced to about thumbnail size, straight into
+        // the thumbnail
+        ResultRegions regions = hr.getRegions();
+        long start = System.nanoTime();
+        List<BufferedImage> heatmaps = regions.getReducedHeatmaps(
+                thumb.getWidth(), thumb.getHeight());
+        for (BufferedImage heatmap : heatmaps) {
+            HEATMAP_OVERLAY_OP.composite(heatmap, thumb);
+        }
+        if (!heatmaps.isEmpty()) {
+            METRICS.record(PipelineMetrics.Stage.HEATMAP,
+                    System.nanoTime() - start);
+        }
+
+        // draw patches
+        Graphics2D g = thumb.createGraphics();
+        scaleToOriginal(g, hr, thumb);
+        g.setColor(Color.GREEN);
+        for (BoundingBox box : regions.getPatches()) {
+            drawPatch(g, box);
+        }
+        g.dispose();
+
+        return thumb;
+    }
+
+    // patch coordinates are in the original image
+    private static void scaleToOriginal(Graphics2D g, HyperFindResult hr,
+            BufferedImage thumb) {
+        int origW = Util.extractInt(hr.getValue("_cols.int"));
+        int origH = Util.extractInt(hr.getValue("_rows.int"));
+        g.scale((double) thumb.getWidth() / (double) origW,
+                (double) thumb.getHeight() / (double) origH);
+    }
+
+    private static Dimension readSize(byte[] data) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(
+                new ByteArrayInputStream(data));
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void drawPatch(Graphics2D g, BoundingBox box) {
+        int x0 = box.getX0();
+        int y0 = box.getY0();
+        int x1 = box.getX1();
+        int y1 = box.getY1();
+        Rectangle r = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        g.draw(r);
+    }
+
+    // check setting from server
+    private static ResultIconSetting getDisplaySetting(HyperFindResult hr) {
+        ResultIconSetting d = ResultIconSetting.ICON_ONLY;
+        byte[] tmp = hr.getValue("hyperfind.thumbnail-display");
+        if (tmp != null) {
+            String setting = Util.extractString(tmp);
+            if (setting.equals("icon")) {
+                d = ResultIconSetting.ICON_ONLY;
+            } else if (setting.equals("label")) {
+                d = ResultIconSetting.LABEL_ONLY;
+            } else if (setting.equals("icon-and-label")) {
+                d = ResultIconSetting.ICON_AND_LABEL;
+            }
+        }
+        return d;
+    }
+}